@@ -0,0 +1,206 @@
+package devantech.example.eth002;
+
+import java.net.InetAddress;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Flight Recorder events behind {@link ModuleEvents}, loaded by it only
+ * when the runtime has jdk.jfr. When nothing is recording an event costs a
+ * few predictable branches, and the fields are only filled in if
+ * shouldCommit says so.
+ */
+final class JfrEvents implements ModuleEvents.Recorder {
+
+    /**
+     * One write to a module and the read of its responses. Pipelined requests
+     * and batches of output commands are a single event.
+     */
+    @Name("devantech.eth002.Command")
+    @Label("Module Command")
+    @Category("ETH002")
+    @Description("Commands written to a module and their responses read back")
+    @StackTrace(false)
+    static class Command extends Event {
+
+        @Label("Module")
+        String module;
+
+        @Label("Opcode")
+        @Description("The first command byte written")
+        int opcode;
+
+        @Label("Bytes Sent")
+        @DataAmount
+        int sent;
+
+        @Label("Bytes Received")
+        @DataAmount
+        int received;
+
+        @Label("Succeeded")
+        boolean succeeded;
+
+    }
+
+    /**
+     * One time round a module's poll loop, not counting the wait for work.
+     */
+    @Name("devantech.eth002.PollCycle")
+    @Label("Module Poll Cycle")
+    @Category("ETH002")
+    @StackTrace(false)
+    static class PollCycle extends Event {
+
+        @Label("Module")
+        String module;
+
+        @Label("Priority")
+        @Description("What the loop sent: OPERATOR, AUTOMATION or TELEMETRY")
+        String priority;
+
+        @Label("Loop")
+        long loop;
+
+    }
+
+    /**
+     * One step of connecting to a module.
+     */
+    @Name("devantech.eth002.ConnectPhase")
+    @Label("Module Connect Phase")
+    @Category("ETH002")
+    @StackTrace(false)
+    static class ConnectPhase extends Event {
+
+        @Label("Module")
+        String module;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Succeeded")
+        boolean succeeded;
+
+    }
+
+    /**
+     * A UDP reply to a discovery broadcast, whether it was taken or thrown away.
+     */
+    @Name("devantech.eth002.DiscoveryPacket")
+    @Label("Discovery Packet")
+    @Category("ETH002")
+    @StackTrace(false)
+    static class DiscoveryPacket extends Event {
+
+        @Label("Source")
+        String source;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+
+        @Label("Accepted")
+        boolean accepted;
+
+        @Label("Reason")
+        @Description("Why the packet was rejected")
+        String reason;
+
+        @Label("MAC Address")
+        String mac;
+
+    }
+
+    JfrEvents() {
+    }
+
+    @Override
+    public Object beginCommand() {
+        Command event = new Command();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endCommand(Object e, String module, int opcode, int sent, int received, boolean succeeded) {
+        Command event = (Command) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.module = module;
+            event.opcode = opcode;
+            event.sent = sent;
+            event.received = received;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginPollCycle() {
+        PollCycle event = new PollCycle();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endPollCycle(Object e, String module, String priority, long loop) {
+        PollCycle event = (PollCycle) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.module = module;
+            event.priority = priority;
+            event.loop = loop;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginConnectPhase() {
+        ConnectPhase event = new ConnectPhase();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endConnectPhase(Object e, String module, String phase, boolean succeeded) {
+        ConnectPhase event = (ConnectPhase) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.module = module;
+            event.phase = phase;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginDiscovery() {
+        DiscoveryPacket event = new DiscoveryPacket();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endDiscovery(Object e, InetAddress source, int length, String mac, String reason) {
+        DiscoveryPacket event = (DiscoveryPacket) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = String.valueOf(source);
+            event.length = length;
+            event.accepted = mac != null;
+            if (mac != null) {
+                event.mac = mac;
+            } else {
+                event.reason = reason;
+            }
+            event.commit();
+        }
+    }
+
+}
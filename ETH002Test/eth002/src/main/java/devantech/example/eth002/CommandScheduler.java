@@ -0,0 +1,384 @@
+package devantech.example.eth002;
+
+import devantech.example.eth002.Module.Priority;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides what a module's poll loop sends next. Output commands wait in one
+ * lane per priority class and telemetry is due every poll interval. Each time
+ * round, the loop is given operator commands first, then automation commands,
+ * then telemetry. The loop sleeps until one of those is ready, and a queued
+ * command wakes it, so an operator command waits for at most the exchange
+ * already in flight.
+ *
+ * A module can be given a rate cap on exchanges, and modules that share a
+ * link can share a {@link Gateway} that caps them all and hands out its
+ * exchanges fairly between them. Operator commands are counted against both
+ * caps but are never held back by them. The debt they run up is capped at one
+ * burst, so once a flood of operator commands stops, automation and telemetry
+ * wait no longer than a cap takes to earn back one burst and one exchange.
+ */
+public class CommandScheduler {
+
+    /**
+     * Output commands of one class, encoded and waiting to be sent in one
+     * write.
+     */
+    static final class Batch {
+        ByteBuffer commands = ByteBuffer.allocate(48);
+        int acks = 0;
+        long since = 0;     // System.nanoTime() when the oldest command was queued
+
+        private void clear() {
+            commands.clear();
+            acks = 0;
+        }
+    }
+
+    /**
+     * A link shared by several modules, such as a cellular router, with a cap
+     * on the exchanges per second through it. When modules are waiting for
+     * the link, those with automation commands go before those wanting
+     * telemetry, and within each class they take turns in the order they
+     * asked.
+     */
+    public static class Gateway {
+
+        private final TokenBucket bucket;
+        private final ArrayDeque<CommandScheduler> automation = new ArrayDeque<>();
+        private final ArrayDeque<CommandScheduler> telemetry = new ArrayDeque<>();
+
+        /**
+         * Constructor
+         * @param r the exchanges per second allowed through the link
+         * @param b how many exchanges can go at once after the link has been quiet
+         */
+        public Gateway(double r, int b) {
+            bucket = new TokenBucket(r, b, System.nanoTime());
+        }
+
+        /**
+         * Ask for one exchange.
+         * @return 0 if it may go now, otherwise nanoseconds to wait before asking again
+         */
+        synchronized long acquire(CommandScheduler s, Priority p, long now) {
+            bucket.refill(now);
+            if (p == Priority.OPERATOR) {
+                bucket.borrow();
+                return 0;
+            }
+            ArrayDeque<CommandScheduler> queue = p == Priority.AUTOMATION ? automation : telemetry;
+            (p == Priority.AUTOMATION ? telemetry : automation).remove(s);
+
+            // Leave a token for each module that asked earlier, or for a more urgent reason.
+            int ahead = 0;
+            boolean waiting = false;
+            for (CommandScheduler other : queue) {
+                if (other == s) {
+                    waiting = true;
+                    break;
+                }
+                ahead++;
+            }
+            if (p == Priority.TELEMETRY) ahead += automation.size();
+
+            if (bucket.tokens >= ahead + 1) {
+                bucket.tokens -= 1;
+                if (waiting) queue.remove(s);
+                return 0;
+            }
+            if (!waiting) queue.add(s);
+            return bucket.nanosUntil(ahead + 1);
+        }
+
+        /**
+         * Forget a module that will not ask again.
+         */
+        synchronized void leave(CommandScheduler s) {
+            automation.remove(s);
+            telemetry.remove(s);
+        }
+
+    }
+
+    /**
+     * Tokens that fill at a fixed rate up to a limit. Callers synchronise.
+     */
+    private static class TokenBucket {
+        final double perNano;
+        final double burst;
+        double tokens;
+        long last;
+
+        TokenBucket(double rate, double b, long now) {
+            perNano = rate / 1e9;
+            burst = b;
+            tokens = b;
+            last = now;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - last) * perNano);
+            last = now;
+        }
+
+        /**
+         * Take a token whether or not there is one, going no further into
+         * debt than one burst.
+         */
+        void borrow() {
+            tokens = Math.max(-burst, tokens - 1);
+        }
+
+        long nanosUntil(double n) {
+            return tokens >= n ? 0 : Math.max(1, (long) Math.ceil((n - tokens) / perNano));
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final Batch[] queued = {new Batch(), new Batch()};     // by priority, operator and automation only
+    private final Batch[] spare = {new Batch(), new Batch()};
+    private long interval = 0;      // nanoseconds to rest between telemetry passes
+    private long nextPoll = 0;
+    private Priority last = null;
+    private TokenBucket bucket = null;
+    private Gateway gateway = null;
+    private boolean closed = false;
+    private long wait = 0;      // set by decide when nothing may be sent
+    private volatile Runnable readyListener = null;
+
+    CommandScheduler() {
+    }
+
+    /**
+     * @param ms milliseconds to rest between telemetry passes
+     */
+    void setPollInterval(int ms) {
+        lock.lock();
+        try {
+            interval = TimeUnit.MILLISECONDS.toNanos(ms);
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param rate the exchanges per second allowed, 0 for no cap
+     * @param burst how many exchanges can go at once after a quiet spell
+     */
+    void setRateLimit(double rate, int burst) {
+        lock.lock();
+        try {
+            bucket = rate > 0 ? new TokenBucket(rate, Math.max(1, burst), System.nanoTime()) : null;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param g the link to share, or null for none
+     */
+    void setGateway(Gateway g) {
+        lock.lock();
+        try {
+            if (gateway != null) gateway.leave(this);
+            gateway = g;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue an output command and wake the poll loop.
+     */
+    void submit(Priority p, boolean active, int channel, int time) {
+        if (p == Priority.TELEMETRY) throw new IllegalArgumentException("Output commands can not be queued as telemetry.");
+        lock.lock();
+        try {
+            if (closed) return;
+            Batch b = queued[p.ordinal()];
+            if (b.commands.remaining() < 3) {
+                ByteBuffer bigger = ByteBuffer.allocate(b.commands.capacity() * 2);
+                b.commands.flip();
+                bigger.put(b.commands);
+                b.commands = bigger;
+            }
+            if (b.acks == 0) b.since = System.nanoTime();
+            b.acks += ModuleCodec.encodeOutput(b.commands, active, channel, time);
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        Runnable r = readyListener;
+        if (r != null) r.run();
+    }
+
+    /**
+     * Take all the commands queued in one class. The batch returned belongs to
+     * the caller until the next drain of the same class.
+     */
+    Batch drain(Priority p) {
+        lock.lock();
+        try {
+            int index = p.ordinal();
+            Batch b = queued[index];
+            queued[index] = spare[index];
+            queued[index].clear();
+            spare[index] = b;
+            return b;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until something may be sent and say what it is.
+     *
+     * @return the class to send next, or null if the scheduler was closed or
+     * the thread interrupted
+     */
+    Priority next() {
+        lock.lock();
+        try {
+            for (;;) {
+                if (closed) return null;
+                Priority p = decide(System.nanoTime());
+                if (p != null) return p;
+                ready.awaitNanos(wait);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Say what may be sent now, without waiting. For modules serviced by a
+     * {@link FleetPoller} rather than their own thread.
+     *
+     * @return the class to send, or null if nothing may go yet, in which case
+     * waitNanos says how long until something might
+     */
+    Priority due() {
+        lock.lock();
+        try {
+            if (closed) return null;
+            return decide(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return nanoseconds until something might be sent, as of the last call
+     * to due that returned null
+     */
+    long waitNanos() {
+        lock.lock();
+        try {
+            return wait;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell the scheduler an exchange has finished. The rest before the next
+     * telemetry pass starts from the end of the last one.
+     */
+    void done(Priority p) {
+        if (p != Priority.TELEMETRY) return;
+        lock.lock();
+        try {
+            nextPoll = System.nanoTime() + interval;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param r called whenever a command is queued, or null for none
+     */
+    void setReadyListener(Runnable r) {
+        readyListener = r;
+    }
+
+    /**
+     * Stop handing out work and wake the poll loop so it can finish.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (gateway != null) gateway.leave(this);
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pick what to send next. An automation exchange is not followed by
+     * another while telemetry is due, so a stream of automation commands can
+     * not stop the telemetry. Must be called holding lock.
+     *
+     * @return the class to send, or null with wait set to the nanoseconds
+     * until something might be sent
+     */
+    private Priority decide(long now) {
+        if (queued[Priority.OPERATOR.ordinal()].acks > 0) {
+            if (bucket != null) {
+                bucket.refill(now);
+                bucket.borrow();
+            }
+            if (gateway != null) gateway.acquire(this, Priority.OPERATOR, now);
+            return last = Priority.OPERATOR;
+        }
+
+        boolean pollDue = now - nextPoll >= 0;
+        Priority want = null;
+        if (queued[Priority.AUTOMATION.ordinal()].acks > 0 && !(pollDue && last == Priority.AUTOMATION)) {
+            want = Priority.AUTOMATION;
+        } else if (pollDue) {
+            want = Priority.TELEMETRY;
+        }
+
+        if (want == null) {
+            wait = nextPoll - now;
+            return null;
+        }
+        wait = acquire(want, now);
+        return wait == 0 ? (last = want) : null;
+    }
+
+    /**
+     * Take a token from the module's cap and then the gateway's. Must be
+     * called holding lock.
+     *
+     * @return 0 if the exchange may go, otherwise nanoseconds to wait
+     */
+    private long acquire(Priority p, long now) {
+        if (bucket != null) {
+            bucket.refill(now);
+            long wait = bucket.nanosUntil(1);
+            if (wait > 0) return wait;
+        }
+        if (gateway != null) {
+            long wait = gateway.acquire(this, p, now);
+            if (wait > 0) return wait;
+        }
+        if (bucket != null) bucket.tokens -= 1;
+        return 0;
+    }
+
+}
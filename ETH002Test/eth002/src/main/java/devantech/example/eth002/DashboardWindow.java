@@ -0,0 +1,294 @@
+package devantech.example.eth002;
+
+import devantech.example.eth002.ETHScan.ScanResult;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+
+/**
+ * Shows the PSU and relay states of many modules at once, one row each. All
+ * the modules are polled by one {@link FleetPoller}, and the table is redrawn
+ * by a single timer that only repaints the rows whose modules have reported
+ * since the last redraw.
+ *
+ * Untick a row to disconnect from that module and tick it to connect again.
+ * Double click a relay to toggle it.
+ */
+public class DashboardWindow extends javax.swing.JFrame implements FleetPoller.Listener, Module.TelemetryListener {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int WORKERS = 8;           // modules talked to at once
+    static final int POLL_INTERVAL = 250;   // ms between polls of each module
+    static final int UI_INTERVAL = 200;     // ms between redraws of the table
+    static final int TIMEOUT = 3000;        // ms to wait for a module to connect or answer
+
+    private static final String[] COLUMNS = {"Watch", "Module", "Status", "PSU volts", "Relay 1", "Relay 2"};
+    private static final int WATCH = 0, STATUS = 2, PSU = 3, RELAY_1 = 4, RELAY_2 = 5;
+
+    /**
+     * One module in the table.
+     */
+    private static class Row {
+        final ScanResult result;
+        volatile Module module = null;
+        volatile String status = "";
+
+        Row(ScanResult r) {
+            result = r;
+        }
+    }
+
+    private final List<Row> rows = new ArrayList<>();
+    private final Map<Module, Integer> rowOf = new ConcurrentHashMap<>();
+    private final AtomicIntegerArray dirty;
+    private final FleetPoller poller = new FleetPoller(WORKERS);
+    private final javax.swing.Timer timer = new javax.swing.Timer(UI_INTERVAL, (e) -> redraw());
+    private final int port;
+    private final String password;
+    private final Model model = new Model();
+
+    /**
+     * Creates the window and starts connecting to every module in it.
+     * @param modules the modules to show
+     * @param p the port the modules listen on
+     * @param pass the TCP/IP password of the modules
+     */
+    public DashboardWindow(List<ScanResult> modules, int p, String pass) {
+        super("ETH002 Dashboard");
+        port = p;
+        password = pass;
+        for (ScanResult r : modules) {
+            rows.add(new Row(r));
+        }
+        dirty = new AtomicIntegerArray(rows.size());
+        poller.setListener(this);
+
+        JTable table = new JTable(model);
+        RelayRenderer relay = new RelayRenderer();
+        table.getColumnModel().getColumn(RELAY_1).setCellRenderer(relay);
+        table.getColumnModel().getColumn(RELAY_2).setCellRenderer(relay);
+        table.getColumnModel().getColumn(WATCH).setMaxWidth(60);
+        table.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() != 2) return;
+                int row = table.rowAtPoint(e.getPoint());
+                int column = table.columnAtPoint(e.getPoint());
+                if (row >= 0 && (column == RELAY_1 || column == RELAY_2)) toggleOutput(rows.get(row), column - RELAY_1 + 1);
+            }
+        });
+        add(new JScrollPane(table));
+        setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
+        setSize(640, Math.min(800, 80 + 20 * rows.size()));
+        setLocationByPlatform(true);
+
+        addWindowListener(new WindowAdapter() {         // Stop polling and close every connection when the window is closed.
+            @Override
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+                poller.shutdown();
+            }
+        });
+
+        for (int index = 0; index < rows.size(); index++) {
+            watch(index);
+        }
+        timer.start();
+    }
+
+    /**
+     * Connect to the module in a row.
+     */
+    void watch(int index) {
+        Row row = rows.get(index);
+        if (row.module != null) return;
+        Module m = new Module(row.result.ip, port, password);
+        m.setPollInterval(POLL_INTERVAL);
+        m.addTelemetryListener(this);
+        row.module = m;
+        row.status = "Connecting...";
+        rowOf.put(m, index);
+        poller.add(m, TIMEOUT);
+        model.fireTableRowsUpdated(index, index);
+    }
+
+    /**
+     * Disconnect from the module in a row.
+     */
+    void unwatch(int index) {
+        Row row = rows.get(index);
+        Module m = row.module;
+        if (m == null) return;
+        row.module = null;
+        row.status = "";
+        poller.remove(m);
+        model.fireTableRowsUpdated(index, index);
+    }
+
+    void toggleOutput(Row row, int relay) {
+        Module m = row.module;
+        if (m == null || !m.isConnected()) return;
+        if ((m.DIGITAL_OUTPUTS.data & (1 << (relay - 1))) == 0) {
+            m.digitalOutputActive(relay, 0);
+        } else {
+            m.digitalOutputInactive(relay, 0);
+        }
+    }
+
+    @Override
+    public void connected(Module m) {
+        setStatus(m, "Connected", false);
+    }
+
+    @Override
+    public void disconnected(Module m, String reason) {
+        m.removeTelemetryListener(this);
+        setStatus(m, reason, true);
+        rowOf.remove(m);
+    }
+
+    @Override
+    public void telemetryUpdated(Module m) {
+        Integer index = rowOf.get(m);
+        if (index != null) dirty.set(index, 1);
+    }
+
+    /**
+     * Show the state of a module's connection. Called on poller threads.
+     * @param gone true if the module is no longer connected, so the row can be ticked again
+     */
+    private void setStatus(Module m, String status, boolean gone) {
+        Integer index = rowOf.get(m);
+        if (index == null) return;
+        Row row = rows.get(index);
+        if (row.module != m) return;    // unwatched since
+        row.status = status;
+        if (gone) row.module = null;
+        dirty.set(index, 1);
+    }
+
+    /**
+     * Repaint the rows that have changed since the last redraw, as one range
+     * so the table is only repainted once.
+     */
+    private void redraw() {
+        int first = -1;
+        int last = -1;
+        for (int index = 0; index < dirty.length(); index++) {
+            if (dirty.get(index) != 0 && dirty.getAndSet(index, 0) != 0) {
+                if (first < 0) first = index;
+                last = index;
+            }
+        }
+        if (first >= 0) model.fireTableRowsUpdated(first, last);
+    }
+
+    /**
+     * The table contents, read straight from the modules.
+     */
+    private class Model extends AbstractTableModel {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column == WATCH ? Boolean.class : String.class;
+        }
+
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return column == WATCH;
+        }
+
+        @Override
+        public void setValueAt(Object value, int row, int column) {
+            if (column != WATCH) return;
+            if ((Boolean) value) {
+                watch(row);
+            } else {
+                unwatch(row);
+            }
+        }
+
+        @Override
+        public Object getValueAt(int index, int column) {
+            Row row = rows.get(index);
+            Module m = row.module;
+            boolean live = m != null && m.isConnected() && m.UPDATED != 0;
+            switch (column) {
+                case WATCH:
+                    return m != null;
+                case STATUS:
+                    return row.status;
+                case RELAY_1:
+                case RELAY_2:
+                    if (!live) return "";
+                    return (m.DIGITAL_OUTPUTS.data & (1 << (column - RELAY_1))) != 0 ? "On" : "Off";
+                case PSU:
+                    if (!live) return "";
+                    int v = m.PSU;
+                    return (v / 10) + "." + (v % 10);
+                default:
+                    return row.result.host_name + " (" + row.result.ip + ")";
+            }
+        }
+
+    }
+
+    /**
+     * Colours relays the same way as the main window's buttons.
+     */
+    private static class RelayRenderer extends DefaultTableCellRenderer {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean selected, boolean focus, int row, int column) {
+            super.getTableCellRendererComponent(table, value, selected, focus, row, column);
+            setHorizontalAlignment(CENTER);
+            if (!selected) setBackground("On".equals(value) ? Color.red : Color.white);
+            return this;
+        }
+
+    }
+
+    /**
+     * Open a dashboard on the event dispatch thread.
+     * @param modules the modules to show
+     * @param port the port the modules listen on
+     * @param password the TCP/IP password of the modules
+     */
+    public static void open(List<ScanResult> modules, int port, String password) {
+        SwingUtilities.invokeLater(() -> new DashboardWindow(modules, port, password).setVisible(true));
+    }
+
+}
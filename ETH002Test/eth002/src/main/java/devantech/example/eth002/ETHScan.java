@@ -5,21 +5,50 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class performs a UDP scan of the network and notifies a delegate of any 
  * ETHx modules that are on it.
+ * 
+ * Modules found are put on a bounded queue and handed to the delegates in
+ * batches by a dispatch thread, so a slow delegate never holds up the thread
+ * reading packets. If the delegates fall so far behind that the queue fills,
+ * further results are dropped and counted rather than waited for.
  * @author James Henderson
  */
 public class ETHScan {
     
-    private final List<ETHScanDelegate> delegates = new ArrayList<>();
+    static final int QUEUE_SIZE = 1024;     // results waiting for the delegates before more are dropped
+    static final int MAX_BATCH = 64;        // most results handed to a delegate in one call
+    
+    private final CopyOnWriteArrayList<ETHScanDelegate> delegates = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<ScanResult> found = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private Thread dispatch_thread = null;
+    private boolean overflowing = false;    // true while results are being dropped, guarded by lock
+    
+    static final int DISCOVERY_PORT = 30303;
     
     String udp_string = "Discovery: Who is out there?\0\n";
     
+    private volatile String scan_address = "255.255.255.255";
+    private volatile int scan_port = DISCOVERY_PORT;
+    private volatile int local_port = DISCOVERY_PORT;
+    
     ReentrantLock lock = new ReentrantLock();
 
     private Thread receive_thread = null;
@@ -78,6 +107,17 @@ public class ETHScan {
          * @param module the module that was found
          */
         public void moduleFound(ScanResult module);
+        
+        /**
+         * Called on the dispatch thread with the modules found since the last
+         * call. By default passes each one to moduleFound.
+         * @param modules the modules that were found, in the order they were found
+         */
+        public default void modulesFound(List<ScanResult> modules) {
+            for (ScanResult m : modules) {
+                moduleFound(m);
+            }
+        }
     
     }
     
@@ -86,9 +126,7 @@ public class ETHScan {
      * @param d the delegate to add
      */
     public void addDelegate(ETHScanDelegate d) {
-        if (!delegates.contains(d)) {
-            delegates.add(d);
-        }
+        delegates.addIfAbsent(d);
     }
     
     /**
@@ -96,25 +134,113 @@ public class ETHScan {
      * @param d the delegate to remove
      */
     public void removeDelegate(ETHScanDelegate d) {
-        if (delegates.contains(d)) {
-            delegates.remove(d);
-        }
+        delegates.remove(d);
     }
     
     /**
-     * Update all of the delegates that are listening for modules.
+     * @return the number of modules handed to the delegates.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+    
+    /**
+     * @return the number of modules found but dropped because the delegates
+     * had fallen too far behind.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    /**
+     * @return the number of times the queue of found modules filled up.
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+    
+    /**
+     * Queue a found module for the delegates. Never waits; if the queue is
+     * full the module is dropped.
      * @param module the module found.
      */
     void updateDelegates(ScanResult module) {
-        for (ETHScanDelegate d : delegates) {
-            d.moduleFound(module);
+        if (found.offer(module)) {
+            overflowing = false;
+        } else {
+            dropped.incrementAndGet();
+            if (!overflowing) {
+                overflowing = true;
+                overflows.incrementAndGet();
+            }
         }
     }
     
+    /**
+     * Hand queued modules to the delegates in batches until interrupted.
+     */
+    private void dispatch() {
+        List<ScanResult> batch = new ArrayList<>(MAX_BATCH);
+        List<ScanResult> view = Collections.unmodifiableList(batch);
+        try {
+            for (;;) {
+                batch.add(found.take());
+                found.drainTo(batch, MAX_BATCH - 1);
+                for (ETHScanDelegate d : delegates) {
+                    try {
+                        d.modulesFound(view);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(ETHScan.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                delivered.addAndGet(batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            // Scanner shut down.
+        }
+    }
+    
+    /**
+     * Stop handing modules to the delegates. Modules still queued are lost.
+     * The UDP port is closed, which also ends the receive thread.
+     */
+    public synchronized void shutdown() {
+        // close_action only closes a connected socket, and ours never is.
+        if (socket != null) socket.close();
+        close_action();
+        if (dispatch_thread != null) {
+            dispatch_thread.interrupt();
+            dispatch_thread = null;
+        }
+    }
+    
+    /**
+     * Set where the discovery request is sent. By default it is broadcast to
+     * port 30303 from port 30303, which is what the modules answer; a single
+     * address, a proxy or a stand in device can be scanned instead.
+     * Takes effect on the next udpAction.
+     * @param address the address to send the request to
+     * @param port the port to send the request to
+     * @param local the port to send from and listen for replies on, 0 for any free port
+     */
+    public void setTarget(String address, int port, int local) {
+        scan_address = address;
+        scan_port = port;
+        local_port = local;
+    }
+    
     /**
      * Perform the UDP search for modules on the network.
      */
     public void udpAction() {
+        synchronized (this) {
+            if (dispatch_thread == null) {
+                dispatch_thread = new Thread(this::dispatch, "ethscan-dispatch");
+                dispatch_thread.setDaemon(true);
+                dispatch_thread.start();
+            }
+        }
         try {
             receive_thread = new Thread() {
                 @Override
@@ -123,11 +249,11 @@ public class ETHScan {
                 }
             };
 
-            socket = new DatagramSocket(30303);
+            socket = new DatagramSocket(local_port);
             socket.setBroadcast(true);
-            InetAddress address = InetAddress.getByName("255.255.255.255");
+            InetAddress address = InetAddress.getByName(scan_address);
             packet = new DatagramPacket(udp_string.getBytes(),
-                    udp_string.length(), address, 30303);
+                    udp_string.length(), address, scan_port);
 
             socket.send(packet);
             receive_thread.start();
@@ -145,10 +271,7 @@ public class ETHScan {
             for (int i = 0; i < buf.length; i++) {
                 buf[i] = ' ';
             }
-            packet = new DatagramPacket(buf, buf.length);
-
-            //ignore first packet which is a loopback one
-            socket.receive(packet);
+            byte[] request = udp_string.getBytes();
             
             for (;;) {
                 for (int i = 0; i < buf.length; i++) {
@@ -161,33 +284,56 @@ public class ETHScan {
                 } catch (SocketTimeoutException e) {
 
                 }
+                
+                //ignore our own request looped back by a broadcast
+                if (packet.getLength() == request.length
+                        && Arrays.equals(Arrays.copyOf(buf, request.length), request)) {
+                    continue;
+                }
 
+                Object event = ModuleEvents.beginDiscovery();
+                
                 if (new String(packet.getData()).trim().length() == 0) {
+                    commitDiscovery(event, packet, null, "Empty packet");
                     continue;
                 }
                 if (packet.getLength() < 35) {
+                    commitDiscovery(event, packet, null, "Too short");
                     continue;
                 }
 
+                ScanResult found;
                 lock.lock();
                 try {
-                    addDiscoveryEntry(packet);
+                    found = addDiscoveryEntry(packet);
                 } finally {
                     lock.unlock();
                 }
+                commitDiscovery(event, packet, found, "Not a supported module");
             }
         } catch (IOException e) {
             close_action();
         }
     }
     
+    /**
+     * End a discovery packet event and commit it if it is being recorded.
+     * @param found the module the packet described, or null if it was rejected
+     * @param reason why the packet was rejected
+     */
+    private void commitDiscovery(Object event, DatagramPacket p, ScanResult found, String reason) {
+        ModuleEvents.endDiscovery(event, p.getAddress(), p.getLength(), found != null ? found.mac : null, reason);
+    }
+    
     /**
      * Notify the delegates of a discover.
      * @param receivedPacket 
+     * @return the module found, or null if the packet was not from a supported module
      */
-    private void addDiscoveryEntry(DatagramPacket receivedPacket) {
+    private ScanResult addDiscoveryEntry(DatagramPacket receivedPacket) {
         byte[] packet_buffer = receivedPacket.getData();
         int packet_length = receivedPacket.getLength();
+        ScanResult found = null;
         int data_count;
         String mac_address = "";
         String host_name = "";
@@ -200,7 +346,7 @@ public class ETHScan {
         for (data_count = 0; data_count < packet_length;) {
             switch (packet_buffer[data_count]) {
                 case 0x01:
-                    return;
+                    return found;
                 case 0x02: // MAC address
                     data_count++;
                     for (index = 0; index < 6; index++) {
@@ -210,15 +356,7 @@ public class ETHScan {
                     if (temp.length == 0) {
                         break;
                     }
-                    // MAC address string construction
-                    StringBuilder sb = new StringBuilder(22);
-                    for (byte b : temp) {
-                        if (sb.length() > 0) {
-                            sb.append(':');
-                        }
-                        sb.append(String.format("%02x", b));
-                    }
-                    mac_address = mac_address.concat(sb.toString());
+                    mac_address = mac_address.concat(ModuleCodec.decodeMac(ByteBuffer.wrap(temp)));
                     break;
                 case 0x03: // MAC Type
                     data_count++;
@@ -251,7 +389,7 @@ public class ETHScan {
                     if (temp.length == 0) {
                         break;
                     }
-                    sb = new StringBuilder(22);
+                    StringBuilder sb = new StringBuilder(22);
                     for (byte b : temp) {
                         if (sb.length() > 0) {
                             sb.append('.');
@@ -283,7 +421,7 @@ public class ETHScan {
                         case 34:
                         case 35:
                             // Ignoring dS modules for this application.
-                            return;
+                            return found;
                         case 18:    // ETH002 32 bit
                         case 19:    // ETH008 32 bit
                         case 20:    // ETH484 32 bit
@@ -293,18 +431,19 @@ public class ETHScan {
                         case 54:    // ETH24V008
                         case 200:   // ETH-UPLOADER
                             ScanResult r = new ScanResult(ip_addr, host_name, (int)temp[0]  & 0xFF, mac_address);
+                            found = r;
                             updateDelegates(r);
                             break;
                         default:
-                            return;
+                            return found;
                     }
                     
                     break;
                 case 0x41:
-                    return;
+                    return found;
                     
                 default:
-                    return;
+                    return found;
             }
             if (packet_buffer[data_count] == 0x0d) {
                 data_count++;
@@ -313,6 +452,7 @@ public class ETHScan {
                 data_count++;
             }
         }
+        return found;
     }
     
     /**
@@ -0,0 +1,280 @@
+package devantech.example.eth002;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connects to and polls many modules from a small, fixed set of threads
+ * instead of one thread per module. Each module waits in a delay queue until
+ * its scheduler has something for it to send; a free worker then does that
+ * one exchange and puts it back. A module is only ever in the queue once, so
+ * exchanges with any one module stay in order while different modules are
+ * serviced in parallel. Connecting and logging in can block for the whole
+ * timeout, so they are done on a separate {@link ModuleConnector} pool and a
+ * module only joins the queue once it is logged in.
+ *
+ * Modules added here must not be connected or started by anything else. Output
+ * commands queued on a module bring it to the front of the queue, so they are
+ * sent as soon as a worker is free.
+ */
+public class FleetPoller {
+
+    /**
+     * Should be implemented by classes that want to know when modules connect
+     * and disconnect. Called on a worker or connecting thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param m the module that has connected and is being polled
+         */
+        void connected(Module m);
+
+        /**
+         * @param m the module that failed to connect or has been disconnected
+         * @param reason why, for showing to the user
+         */
+        void disconnected(Module m, String reason);
+
+    }
+
+    /**
+     * A module's place in the queue.
+     */
+    private static class Slot implements Delayed {
+        final Module module;
+        long due = 0;           // System.nanoTime() when the module next wants a worker
+        boolean queued = false; // guarded by the slot
+        boolean kicked = false; // guarded by the slot, set if a command arrives while a worker holds it
+        volatile boolean removed = false;
+        volatile ModuleConnector.Pending pending = null;
+
+        Slot(Module m) {
+            module = m;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(due, ((Slot) o).due);
+        }
+    }
+
+    private final DelayQueue<Slot> queue = new DelayQueue<>();
+    private final Map<Module, Slot> slots = new ConcurrentHashMap<>();
+    private final Thread[] workers;
+    private final ModuleConnector connector;
+    private volatile Listener listener = null;
+
+    /**
+     * Constructor. The workers start straight away, and as many connections
+     * as workers can be made at once.
+     * @param t the number of worker threads, which is the most exchanges in flight at once
+     */
+    public FleetPoller(int t) {
+        this(t, t);
+    }
+
+    /**
+     * Constructor. The workers start straight away.
+     * @param t the number of worker threads, which is the most exchanges in flight at once
+     * @param c the most connections to make at the same time
+     */
+    public FleetPoller(int t, int c) {
+        connector = new ModuleConnector(c);
+        workers = new Thread[t];
+        for (int index = 0; index < t; index++) {
+            workers[index] = new Thread(this::work, "fleet-poller-" + index);
+            workers[index].setDaemon(true);
+            workers[index].start();
+        }
+    }
+
+    /**
+     * @param l the listener to tell about connections, or null for none
+     */
+    public void setListener(Listener l) {
+        listener = l;
+    }
+
+    /**
+     * Connect to a module in the background and poll it until it is removed
+     * or disconnected.
+     *
+     * @param m the module, not yet connected
+     * @param timeout milliseconds to wait for the module to connect and for
+     * each answer after that
+     */
+    public void add(Module m, int timeout) {
+        Slot s = new Slot(m);
+        if (slots.putIfAbsent(m, s) != null) return;
+        m.setReadTimeout(timeout);
+        m.setReadyListener(() -> kick(s));
+        s.pending = connector.login(m, timeout, new ModuleConnector.Progress() {
+            @Override
+            public void phase(Module m, String phase) {
+            }
+
+            @Override
+            public void connected(Module m) {
+                if (s.removed) {
+                    m.close();
+                    finish(s, "Removed.");
+                    return;
+                }
+                Listener l = listener;
+                if (l != null) {
+                    try {
+                        l.connected(m);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(FleetPoller.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                requeue(s, 0);
+            }
+
+            @Override
+            public void failed(Module m, String reason) {
+                finish(s, reason);
+            }
+        });
+    }
+
+    /**
+     * Log out of a module and stop polling it. The logout is done on a worker
+     * once any exchange in flight has finished. A connection still being made
+     * is cancelled.
+     *
+     * @param m the module
+     */
+    public void remove(Module m) {
+        Slot s = slots.get(m);
+        if (s == null) return;
+        s.removed = true;
+        ModuleConnector.Pending p = s.pending;
+        if (p != null && !p.isDone()) {
+            p.cancel();
+            finish(s, "Removed.");
+            return;
+        }
+        kick(s);
+    }
+
+    /**
+     * @return the number of modules added and not yet removed or disconnected.
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * Stop the workers and close every module.
+     */
+    public void shutdown() {
+        connector.shutdown();
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+        for (Slot s : slots.values()) {
+            s.module.close();
+        }
+        slots.clear();
+        queue.clear();
+    }
+
+    /**
+     * Take modules as they become due and do one step for each.
+     */
+    private void work() {
+        try {
+            for (;;) {
+                Slot s = queue.take();
+                synchronized (s) {
+                    s.queued = false;
+                    s.kicked = false;
+                }
+                long wait = step(s);
+                if (wait >= 0) requeue(s, wait);
+            }
+        } catch (InterruptedException ex) {
+            // Shut down.
+        }
+    }
+
+    /**
+     * Poll or disconnect a module.
+     *
+     * @return nanoseconds until the module next wants a worker, or -1 if it
+     * is finished with
+     */
+    private long step(Slot s) {
+        Module m = s.module;
+        if (s.removed) {
+            m.logout();
+            m.close();
+            finish(s, "Removed.");
+            return -1;
+        }
+
+        long wait = m.service();
+        if (wait < 0) {
+            m.close();
+            finish(s, "Connection lost.");
+        }
+        return wait;
+    }
+
+    /**
+     * Forget a module and tell the listener, once however many paths finish it.
+     */
+    private void finish(Slot s, String reason) {
+        if (!slots.remove(s.module, s)) return;
+        s.module.setReadyListener(null);
+        Listener l = listener;
+        if (l != null) {
+            try {
+                l.disconnected(s.module, reason);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(FleetPoller.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Put a module back in the queue, sooner if something was queued on it
+     * while a worker had it.
+     */
+    private void requeue(Slot s, long wait) {
+        synchronized (s) {
+            s.due = System.nanoTime() + (s.kicked ? 0 : wait);
+            s.kicked = false;
+            s.queued = true;
+            queue.put(s);
+        }
+    }
+
+    /**
+     * Bring a module to the front of the queue because it has something to
+     * send. If a worker has it, the worker puts it straight back when done.
+     */
+    private void kick(Slot s) {
+        synchronized (s) {
+            if (!s.queued) {
+                s.kicked = true;
+            } else if (queue.remove(s)) {
+                s.due = System.nanoTime();
+                queue.put(s);
+            }
+        }
+    }
+
+}
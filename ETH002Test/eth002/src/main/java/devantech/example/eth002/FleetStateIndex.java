@@ -0,0 +1,283 @@
+package devantech.example.eth002;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Holds the relay states of every module in a fleet as one bitset per relay
+ * channel, so questions such as "which modules have relay 2 on" are answered
+ * by scanning a few longs rather than visiting every Module.
+ *
+ * Each module is given a slot when it is added. Bit n of the set for a channel
+ * is the state of that channel on the module in slot n. The sets are updated
+ * from each module's telemetry as it arrives; each bit is changed atomically,
+ * but a query that reads several channels may see one module part way through
+ * an update. Writes to a slot hold that slot's lock, and a telemetry update
+ * first checks that its module still owns the slot, so an update that lands
+ * after its module was removed is dropped rather than written over whichever
+ * module has the slot now. Queries are masked with the set of occupied slots,
+ * so a slot being filled or emptied reads as empty.
+ *
+ * Query results are plain long[] bitsets in the same layout, which can be
+ * combined further by the caller and walked with {@link #forEach}.
+ */
+public class FleetStateIndex implements Module.TelemetryListener {
+
+    /**
+     * The number of output channels indexed, one per bit of DIGITAL_OUTPUTS.
+     */
+    public static final int CHANNELS = 8;
+
+    private final int capacity;
+    private final int words;
+    private final AtomicLongArray[] outputs = new AtomicLongArray[CHANNELS];
+    private final AtomicLongArray present;
+    private final AtomicReferenceArray<Module> slots;
+    private final Object[] locks;
+    private final ConcurrentHashMap<Module, Integer> slotOf = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     * @param c the most modules the index can hold
+     */
+    public FleetStateIndex(int c) {
+        capacity = c;
+        words = (c + 63) >>> 6;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            outputs[channel] = new AtomicLongArray(words);
+        }
+        present = new AtomicLongArray(words);
+        slots = new AtomicReferenceArray<>(c);
+        locks = new Object[c];
+        for (int slot = 0; slot < c; slot++) {
+            locks[slot] = new Object();
+        }
+    }
+
+    /**
+     * @return the number of longs in each bitset.
+     */
+    public int words() {
+        return words;
+    }
+
+    /**
+     * Add a module to the index and follow its telemetry.
+     * @param m the module
+     * @return the slot given to the module
+     * @throws IllegalStateException if the index is full
+     */
+    public synchronized int add(Module m) {
+        Integer existing = slotOf.get(m);
+        if (existing != null) return existing;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (slots.get(slot) == null) {
+                synchronized (locks[slot]) {
+                    slots.set(slot, m);
+                    slotOf.put(m, slot);
+                    store(slot, m.DIGITAL_OUTPUTS.data);
+                    set(present, slot, true);
+                }
+                m.addTelemetryListener(this);
+                return slot;
+            }
+        }
+        throw new IllegalStateException("Fleet index full at " + capacity + " modules.");
+    }
+
+    /**
+     * Take a module out of the index. Its slot may be given to another module.
+     * @param m the module
+     */
+    public synchronized void remove(Module m) {
+        Integer slot = slotOf.get(m);
+        if (slot == null) return;
+        m.removeTelemetryListener(this);
+        synchronized (locks[slot]) {
+            slotOf.remove(m);
+            set(present, slot, false);
+            store(slot, (byte) 0);
+            slots.set(slot, null);
+        }
+    }
+
+    @Override
+    public void telemetryUpdated(Module m) {
+        Integer slot = slotOf.get(m);
+        if (slot == null) return;
+        synchronized (locks[slot]) {
+            // The module may have been removed and its slot reused since the lookup.
+            if (slots.get(slot) != m) return;
+            store(slot, m.DIGITAL_OUTPUTS.data);
+        }
+    }
+
+    /**
+     * @param m the module
+     * @param channel the relay, starting at 1
+     * @return true if the relay is on in the index
+     */
+    public boolean isSet(Module m, int channel) {
+        Integer slot = slotOf.get(m);
+        return slot != null && (present.get(slot >>> 6) & outputs[channel - 1].get(slot >>> 6) & (1L << slot)) != 0;
+    }
+
+    /**
+     * Count the modules with a relay on.
+     * @param channel the relay, starting at 1
+     * @return the number of modules
+     */
+    public int count(int channel) {
+        AtomicLongArray set = outputs[channel - 1];
+        int n = 0;
+        for (int index = 0; index < words; index++) {
+            n += Long.bitCount(present.get(index) & set.get(index));
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of modules in the index.
+     */
+    public int size() {
+        return slotOf.size();
+    }
+
+    /**
+     * Copy the set of modules that have a relay on.
+     * @param channel the relay, starting at 1
+     * @param dst where to put the set, at least words() long, or null to allocate one
+     * @return dst
+     */
+    public long[] on(int channel, long[] dst) {
+        dst = ensure(dst);
+        AtomicLongArray set = outputs[channel - 1];
+        for (int index = 0; index < words; index++) {
+            dst[index] = present.get(index) & set.get(index);
+        }
+        return dst;
+    }
+
+    /**
+     * Copy the set of modules that have a relay off.
+     * @param channel the relay, starting at 1
+     * @param dst where to put the set, at least words() long, or null to allocate one
+     * @return dst
+     */
+    public long[] off(int channel, long[] dst) {
+        dst = ensure(dst);
+        AtomicLongArray set = outputs[channel - 1];
+        for (int index = 0; index < words; index++) {
+            dst[index] = present.get(index) & ~set.get(index);
+        }
+        return dst;
+    }
+
+    /**
+     * Find the modules that have all of the given relays on.
+     * @param dst where to put the set, at least words() long, or null to allocate one
+     * @param channels the relays, starting at 1
+     * @return dst
+     */
+    public long[] allOn(long[] dst, int... channels) {
+        dst = ensure(dst);
+        for (int index = 0; index < words; index++) {
+            long w = present.get(index);
+            for (int channel : channels) {
+                w &= outputs[channel - 1].get(index);
+            }
+            dst[index] = w;
+        }
+        return dst;
+    }
+
+    /**
+     * Find the modules that have any of the given relays on.
+     * @param dst where to put the set, at least words() long, or null to allocate one
+     * @param channels the relays, starting at 1
+     * @return dst
+     */
+    public long[] anyOn(long[] dst, int... channels) {
+        dst = ensure(dst);
+        for (int index = 0; index < words; index++) {
+            long w = 0;
+            for (int channel : channels) {
+                w |= outputs[channel - 1].get(index);
+            }
+            dst[index] = present.get(index) & w;
+        }
+        return dst;
+    }
+
+    /**
+     * Intersect two sets, leaving the result in the first.
+     * @param a the first set, changed
+     * @param b the second set
+     * @return a
+     */
+    public static long[] and(long[] a, long[] b) {
+        for (int index = 0; index < a.length; index++) {
+            a[index] &= b[index];
+        }
+        return a;
+    }
+
+    /**
+     * @param set a set from this index
+     * @return the number of modules in it
+     */
+    public static int count(long[] set) {
+        int n = 0;
+        for (long w : set) {
+            n += Long.bitCount(w);
+        }
+        return n;
+    }
+
+    /**
+     * Call an action for every module in a set.
+     * @param set a set from this index
+     * @param action what to do with each module
+     */
+    public void forEach(long[] set, Consumer<Module> action) {
+        for (int index = 0; index < words; index++) {
+            long w = set[index];
+            while (w != 0) {
+                int slot = (index << 6) + Long.numberOfTrailingZeros(w);
+                w &= w - 1;
+                Module m = slots.get(slot);
+                if (m != null) action.accept(m);
+            }
+        }
+    }
+
+    /**
+     * Write a module's output byte into every channel set.
+     */
+    private void store(int slot, byte data) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            set(outputs[channel], slot, (data & (1 << channel)) != 0);
+        }
+    }
+
+    private static void set(AtomicLongArray set, int slot, boolean on) {
+        int index = slot >>> 6;
+        long bit = 1L << slot;
+        for (;;) {
+            long w = set.get(index);
+            long n = on ? w | bit : w & ~bit;
+            if (n == w || set.compareAndSet(index, w, n)) return;
+        }
+    }
+
+    private long[] ensure(long[] dst) {
+        if (dst == null) return new long[words];
+        if (dst.length < words) throw new IllegalArgumentException("Set needs " + words + " longs.");
+        Arrays.fill(dst, words, dst.length, 0);
+        return dst;
+    }
+
+}
@@ -0,0 +1,373 @@
+package devantech.example.eth002;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local TCP or UDP proxy that makes the link between the client and a device
+ * behave like a slow or unreliable network. It can add latency and jitter, cap
+ * the bandwidth, drop UDP datagrams and reset TCP connections.
+ *
+ * Data keeps its order in each direction: a chunk is never delivered before
+ * the one read ahead of it, however the jitter falls.
+ */
+public class ImpairmentProxy implements Closeable {
+
+    /**
+     * The link conditions to imitate.
+     */
+    public static class Profile {
+
+        /**
+         * A name for reports
+         */
+        public final String name;
+
+        /**
+         * One way delay added to every chunk in milliseconds
+         */
+        public final int latency;
+
+        /**
+         * Up to this many milliseconds are added to or taken from the latency at random
+         */
+        public final int jitter;
+
+        /**
+         * Bytes per second in each direction, 0 for no limit
+         */
+        public final int bandwidth;
+
+        /**
+         * Chance from 0 to 1 of a UDP datagram being dropped
+         */
+        public final double loss;
+
+        /**
+         * Chance from 0 to 1 of a TCP connection being reset on each chunk
+         */
+        public final double reset;
+
+        /**
+         * Constructor
+         * @param n the name
+         * @param l the latency in milliseconds
+         * @param j the jitter in milliseconds
+         * @param b the bandwidth in bytes per second, 0 for no limit
+         * @param lo the UDP loss chance
+         * @param r the TCP reset chance
+         */
+        public Profile(String n, int l, int j, int b, double lo, double r) {
+            name = n;
+            latency = l;
+            jitter = j;
+            bandwidth = b;
+            loss = lo;
+            reset = r;
+        }
+
+        public static final Profile LAN = new Profile("LAN", 0, 0, 0, 0, 0);
+        public static final Profile WAN = new Profile("WAN", 20, 5, 1_000_000, 0.001, 0);
+        public static final Profile CELLULAR = new Profile("Cellular", 60, 40, 50_000, 0.02, 0.0005);
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+    }
+
+    /**
+     * A chunk waiting to be delivered.
+     */
+    private static class Chunk {
+        final long due;
+        final byte[] data;
+        final SocketAddress to;
+
+        Chunk(long d, byte[] b, SocketAddress t) {
+            due = d;
+            data = b;
+            to = t;
+        }
+    }
+
+    private static final Chunk END = new Chunk(0, new byte[0], null);
+
+    private static final int CONNECT_TIMEOUT = 5000;   // milliseconds to wait for the device when a client connects
+
+    private final Profile profile;
+    private final InetSocketAddress upstream;
+    private final Random random = new Random();
+    private final Set<Closeable> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private ServerSocket tcpServer = null;
+    private DatagramSocket udpSocket = null;
+
+    /**
+     * Constructor
+     * @param p the link conditions
+     * @param host the device address
+     * @param port the device port
+     */
+    public ImpairmentProxy(Profile p, String host, int port) {
+        profile = p;
+        upstream = new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Start proxying TCP connections.
+     * @param port the local port to listen on, 0 for any free port
+     * @return the local port
+     * @throws IOException if the port can not be opened
+     */
+    public int startTcp(int port) throws IOException {
+        tcpServer = new ServerSocket(port);
+        open.add(tcpServer);
+        start("proxy-accept", () -> {
+            while (running) {
+                try {
+                    Socket client = tcpServer.accept();
+                    Socket device = new Socket();
+                    try {
+                        device.connect(upstream, CONNECT_TIMEOUT);
+                    } catch (IOException ex) {
+                        forget(client);
+                        throw ex;
+                    }
+                    client.setTcpNoDelay(true);
+                    device.setTcpNoDelay(true);
+                    open.add(client);
+                    open.add(device);
+                    // Once both directions have finished the pair is closed and forgotten.
+                    AtomicInteger directions = new AtomicInteger(2);
+                    Runnable finished = () -> {
+                        if (directions.decrementAndGet() == 0) {
+                            forget(client);
+                            forget(device);
+                        }
+                    };
+                    pipe(client, device, finished);
+                    pipe(device, client, finished);
+                } catch (IOException ex) {
+                    if (running) Logger.getLogger(ImpairmentProxy.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        });
+        return tcpServer.getLocalPort();
+    }
+
+    /**
+     * Start proxying UDP datagrams. Replies from the device go back to the
+     * address that sent the last datagram.
+     * @param port the local port to listen on, 0 for any free port
+     * @return the local port
+     * @throws IOException if the port can not be opened
+     */
+    public int startUdp(int port) throws IOException {
+        udpSocket = new DatagramSocket(port);
+        DatagramSocket device = new DatagramSocket();
+        open.add(udpSocket);
+        open.add(device);
+        LinkedBlockingQueue<Chunk> toDevice = new LinkedBlockingQueue<>();
+        LinkedBlockingQueue<Chunk> toClient = new LinkedBlockingQueue<>();
+        AtomicReference<SocketAddress> client = new AtomicReference<>();
+
+        start("proxy-udp-in", () -> relayDatagrams(udpSocket, toDevice, (p) -> {
+            client.set(p.getSocketAddress());
+            return upstream;
+        }));
+        start("proxy-udp-out", () -> relayDatagrams(device, toClient, (p) -> client.get()));
+        start("proxy-udp-deliver-in", () -> deliverDatagrams(device, toDevice));
+        start("proxy-udp-deliver-out", () -> deliverDatagrams(udpSocket, toClient));
+        return udpSocket.getLocalPort();
+    }
+
+    /**
+     * @return the number of TCP connections reset on purpose.
+     */
+    public long getResets() {
+        return resets.get();
+    }
+
+    /**
+     * @return the number of UDP datagrams dropped on purpose.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Closeable c : open) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // Already closed.
+            }
+        }
+        open.clear();
+    }
+
+    /**
+     * Copy one direction of a TCP connection through a delay queue, then run
+     * finished once nothing more will be written.
+     */
+    private void pipe(Socket from, Socket to, Runnable finished) {
+        LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        long[] last = {0};
+        start("proxy-read", () -> {
+            byte[] buf = new byte[4096];
+            try {
+                InputStream in = from.getInputStream();
+                for (int n = in.read(buf); n >= 0 && running; n = in.read(buf)) {
+                    if (profile.reset > 0 && random.nextDouble() < profile.reset) {
+                        resets.incrementAndGet();
+                        reset(from);
+                        reset(to);
+                        break;
+                    }
+                    queue.add(new Chunk(deliveryTime(n, last), Arrays.copyOf(buf, n), null));
+                }
+            } catch (IOException ex) {
+                // The connection is gone, let the writer finish.
+            }
+            queue.add(END);
+        });
+        start("proxy-write", () -> {
+            try {
+                OutputStream out = to.getOutputStream();
+                for (Chunk c = queue.take(); c != END; c = queue.take()) {
+                    waitUntil(c.due);
+                    out.write(c.data);
+                }
+                to.shutdownOutput();
+            } catch (IOException ex) {
+                // The other side went away.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finished.run();
+            }
+        });
+    }
+
+    /**
+     * Close a socket whose connection has ended and stop tracking it.
+     */
+    private void forget(Socket s) {
+        open.remove(s);
+        try {
+            s.close();
+        } catch (IOException ex) {
+            // Already closed.
+        }
+    }
+
+    private interface Route {
+        SocketAddress to(DatagramPacket p);
+    }
+
+    private void relayDatagrams(DatagramSocket from, LinkedBlockingQueue<Chunk> queue, Route route) {
+        byte[] buf = new byte[1500];
+        long[] last = {0};
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        while (running) {
+            try {
+                p.setLength(buf.length);
+                from.receive(p);
+                SocketAddress to = route.to(p);
+                if (to == null) continue;
+                if (profile.loss > 0 && random.nextDouble() < profile.loss) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                queue.add(new Chunk(deliveryTime(p.getLength(), last), Arrays.copyOf(buf, p.getLength()), to));
+            } catch (IOException ex) {
+                if (running) Logger.getLogger(ImpairmentProxy.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        queue.add(END);
+    }
+
+    private void deliverDatagrams(DatagramSocket out, LinkedBlockingQueue<Chunk> queue) {
+        try {
+            for (Chunk c = queue.take(); c != END; c = queue.take()) {
+                waitUntil(c.due);
+                out.send(new DatagramPacket(c.data, c.data.length, c.to));
+            }
+        } catch (IOException ex) {
+            if (running) Logger.getLogger(ImpairmentProxy.class.getName()).log(Level.WARNING, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Work out when a chunk of n bytes read now should be delivered. The
+     * bandwidth cap queues chunks behind each other; jitter never lets a
+     * chunk overtake the one before.
+     */
+    private long deliveryTime(int n, long[] last) {
+        long now = System.nanoTime();
+        long delay = TimeUnit.MILLISECONDS.toNanos(profile.latency);
+        if (profile.jitter > 0) {
+            delay += TimeUnit.MICROSECONDS.toNanos(random.nextInt(profile.jitter * 2000 + 1) - profile.jitter * 1000L);
+        }
+        long due = now + Math.max(0, delay);
+        if (profile.bandwidth > 0) {
+            long wire = TimeUnit.SECONDS.toNanos(n) / profile.bandwidth;
+            due = Math.max(due, last[0]) + wire;
+        }
+        due = Math.max(due, last[0]);
+        last[0] = due;
+        return due;
+    }
+
+    private static void waitUntil(long due) {
+        for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private static void reset(Socket s) {
+        try {
+            s.setSoLinger(true, 0);     // close with an RST rather than a FIN
+            s.close();
+        } catch (IOException ex) {
+            // Already closed.
+        }
+    }
+
+    private static void start(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+}
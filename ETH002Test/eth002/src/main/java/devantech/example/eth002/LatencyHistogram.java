@@ -0,0 +1,60 @@
+package devantech.example.eth002;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed bucket histogram of command round trip times. Recording is a couple
+ * of atomic adds and never allocates, so it can sit on the command path.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds of the buckets in microseconds. Anything slower goes in
+     * the last, unbounded, bucket.
+     */
+    public static final long[] BOUNDS = {
+        250, 500, 1_000, 2_000, 5_000, 10_000, 20_000, 50_000, 100_000, 200_000, 500_000, 1_000_000
+    };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLongArray totals = new AtomicLongArray(2);     // count, sum of nanoseconds
+
+    /**
+     * Record one round trip.
+     * @param nanos how long it took in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int index = 0;
+        while (index < BOUNDS.length && micros > BOUNDS[index]) {
+            index++;
+        }
+        buckets.incrementAndGet(index);
+        totals.incrementAndGet(0);
+        totals.addAndGet(1, nanos);
+    }
+
+    /**
+     * @return the number of round trips recorded.
+     */
+    public long count() {
+        return totals.get(0);
+    }
+
+    /**
+     * @return the total time of all round trips in nanoseconds.
+     */
+    public long sum() {
+        return totals.get(1);
+    }
+
+    /**
+     * @param index the bucket, 0 to BOUNDS.length
+     * @return the number of round trips that fell in that bucket alone
+     */
+    public long bucket(int index) {
+        return buckets.get(index);
+    }
+
+}
@@ -4,15 +4,23 @@ import devantech.example.eth002.ETHScan.ETHScanDelegate;
 import devantech.example.eth002.ETHScan.ScanResult;
 import devantech.example.eth002.Module.ErrorCallback;
 import java.awt.Color;
+import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.AbstractListModel;
+import javax.swing.ComboBoxModel;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JComponent;
 import javax.swing.JOptionPane;
+import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
 
 
@@ -22,7 +30,72 @@ import javax.swing.SwingUtilities;
  */
 public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, ErrorCallback {
 
-    List<ScanResult> modules = new ArrayList<>();
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The modules offered in the selection drop down, one per MAC address.
+     * When nothing is selected the drop down shows a prompt.
+     */
+    static class ModuleChoices extends AbstractListModel<ScanResult> implements ComboBoxModel<ScanResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<ScanResult> modules = new ArrayList<>();
+        private Object selected = null;
+
+        /**
+         * Add a module, or replace the one with the same MAC address, whose
+         * address or host name may have changed.
+         * @param sr the module
+         */
+        void put(ScanResult sr) {
+            for (int index = 0; index < modules.size(); index++) {
+                if (modules.get(index).mac.equals(sr.mac)) {
+                    if (selected == modules.get(index)) selected = sr;
+                    modules.set(index, sr);
+                    fireContentsChanged(this, index, index);
+                    return;
+                }
+            }
+            modules.add(sr);
+            fireIntervalAdded(this, modules.size() - 1, modules.size() - 1);
+        }
+
+        /**
+         * Remove every module and the selection.
+         */
+        void clear() {
+            int size = modules.size();
+            modules.clear();
+            selected = null;
+            if (size > 0) fireIntervalRemoved(this, 0, size - 1);
+        }
+
+        @Override
+        public int getSize() {
+            return modules.size();
+        }
+
+        @Override
+        public ScanResult getElementAt(int index) {
+            return modules.get(index);
+        }
+
+        @Override
+        public void setSelectedItem(Object item) {
+            if (selected == item) return;
+            selected = item;
+            fireContentsChanged(this, -1, -1);
+        }
+
+        @Override
+        public Object getSelectedItem() {
+            return selected;
+        }
+
+    }
+
+    final ModuleChoices choices = new ModuleChoices();
     
     ETHScan scanner;
     
@@ -30,31 +103,55 @@ public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, E
     
     Module module = null;
     
+    static final int CONNECT_TIMEOUT = 3000;    // ms to wait for a module to answer when connecting
+    static final int POLL_INTERVAL = 50;    // ms between polls, the UI only redraws every 100 ms
+    
+    final ModuleConnector connector = new ModuleConnector(1);
+    
+    ModuleConnector.Pending pendingConnect = null;
+    
+    final ModuleWatchdog watchdog = new ModuleWatchdog(5000, 0, 1000);   // close connections that stop answering for 5 s
+    
+    static final int FORGET_DAYS = 90;  // modules not seen for this long are dropped from the registry
+    
+    final ModuleRegistry registry = new ModuleRegistry(new File(System.getProperty("user.home"), ".eth002" + File.separator + "modules.dat"));
+    
     /**
      * Creates new form MainWindow
      */
     public MainWindow() {
         
         initComponents();
+        DefaultListCellRenderer label = new DefaultListCellRenderer();
+        moduleSelectionComboBox.setRenderer((list, sr, index, selected, focused) -> label.getListCellRendererComponent(
+                list, sr == null ? "Select module." : sr.host_name + " (" + sr.ip + ")", index, selected, focused));
         this.setLocationRelativeTo(null);
         setButtonActions();
         
         scanner = new ETHScan();
+        watchdog.setRecycleStalled(true);
         
         addWindowListener(new WindowAdapter() {         // Log out of module and close connection when the window is closed.
             
             @Override
             public void windowClosing(WindowEvent e) {
                 timer.cancel();
+                scanner.shutdown();
+                cancelConnect();
+                connector.shutdown();
+                watchdog.shutdown();
                 if (module != null) module.close();
+                saveRegistry();
             }
             
             @Override
             public void windowOpened(WindowEvent e) {
                 if (e.getSource().getClass() == MainWindow.class) {
                     scanner.addDelegate((ETHScanDelegate)(MainWindow)e.getSource());   
+                    registry.load(scanner, FORGET_DAYS, TimeUnit.DAYS);
                     startScanning();
                     setUIState(false);
+                    revalidateKnownModules();
                 }
             }
             
@@ -69,7 +166,7 @@ public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, E
      */
     void setUIState(boolean st) {
         
-        this.moduleSelectionComboBox.setSelectedIndex(0);
+        this.moduleSelectionComboBox.setSelectedItem(null);
         
         this.relay_1_button.setEnabled(st);
         this.relay_2_button.setEnabled(st);
@@ -87,51 +184,107 @@ public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, E
         relay_2_button.addActionListener((e) -> {
             toggleOutput(2);
         });
+        getRootPane().registerKeyboardAction((e) -> {
+            cancelConnect();
+        }, KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), JComponent.WHEN_IN_FOCUSED_WINDOW);
+        getRootPane().registerKeyboardAction((e) -> {
+            openDashboard();
+        }, KeyStroke.getKeyStroke(KeyEvent.VK_D, KeyEvent.CTRL_DOWN_MASK), JComponent.WHEN_IN_FOCUSED_WINDOW);
                 
     }
     
     /**
-     * Start scanning for modules on the network.
+     * Start scanning for modules on the network. Modules in the registry are
+     * listed straight away and updated as the scan finds them.
      */
     final void startScanning() {
         clearModuleSelection();
-        modules.clear();
+        for (ModuleRegistry.Entry e : registry.entries()) {
+            addModuleToSelection(e.result);
+        }
         scanner.udpAction();
     }
+    
+    /**
+     * Check in the background which known modules are still at their last
+     * address, and connect to the one used last time as soon as it answers.
+     */
+    void revalidateKnownModules() {
+        ModuleRegistry.Entry last = registry.getLast();
+        int port = Integer.parseInt(this.portNumber.getText());
+        registry.revalidate(port, CONNECT_TIMEOUT, (e) -> {
+            registry.seen(e.result);
+            if (e != last) return;
+            SwingUtilities.invokeLater(() -> {
+                if (module == null && pendingConnect == null) connectToModule(e.result);
+            });
+        });
+    }
+    
+    /**
+     * Write the registry out, logging any failure.
+     */
+    void saveRegistry() {
+        try {
+            registry.save();
+        } catch (IOException ex) {
+            Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
 
     /**
-     * Add a module to the module selection drop down menu.
+     * Add a module to the module selection drop down menu. A module already
+     * in the menu is updated instead, as its address may have changed.
      * 
      * @param module the module to add.
      */
-    public void addModuleToSelection(String module) {
-        for (int index = 0; index < moduleSelectionComboBox.getItemCount(); index++) {  // check to make sure we are not entering the same module in the menu twice.
-            if (moduleSelectionComboBox.getItemAt(index).compareTo(module) == 0) return;
-        }
-        moduleSelectionComboBox.addItem(module);
+    public void addModuleToSelection(ScanResult module) {
+        choices.put(module);
     }
 
     /**
      * Clear all items from the module selection dialog.
      */
     public void clearModuleSelection() {
-        moduleSelectionComboBox.removeAllItems();
-        moduleSelectionComboBox.addItem("Select module.");
+        choices.clear();
+    }
+    
+    @Override
+    public void modulesFound(List<ScanResult> found) {
+        List<ScanResult> copy = new ArrayList<>(found);     // the scanner reuses the list once we return
+        SwingUtilities.invokeLater(() -> {
+            for (ScanResult sr : copy) {
+                moduleFound(sr);
+            }
+        });
     }
     
+    /**
+     * Add a found module to the selection. Must be called on the event
+     * dispatch thread.
+     * 
+     * @param sr the module that was found
+     */
     @Override
     public void moduleFound(ETHScan.ScanResult sr) {
-        modules.add(sr);
-        addModuleToSelection(sr.host_name + " (" + sr.ip + ")" );
+        registry.seen(sr);
+        addModuleToSelection(sr);
     }
     
     /**
-     * Connect to the selected module.
+     * Connect to the selected module. The connection is made on a background
+     * thread; progress is shown in the firmware label and pressing escape or
+     * choosing another module cancels it.
      * 
      * @param mod the module to connect to.
      */
     void connectToModule(ScanResult mod) {
         scanner.close_action();
+        cancelConnect();
+        if (module != null) {
+            watchdog.unwatch(module);
+            module.close();
+        }
 
         int port = Integer.parseInt(this.portNumber.getText());
         String pass = this.password.getText();
@@ -139,17 +292,78 @@ public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, E
         module = new Module(mod.ip, port, pass);
         module.subscribeForErrors(this);
 
-        setUIState(true);
+        setUIState(false);
 
-        try {
-            module.connect();
-            String firmware = "Firmware: "+ module.FIRMWARE;
-            firmwareLabel.setText(firmware);
-        } catch (IOException ex) {
-            Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        pendingConnect = connector.connect(module, CONNECT_TIMEOUT, new ModuleConnector.Progress() {
+            @Override
+            public void phase(Module m, String phase) {
+                SwingUtilities.invokeLater(() -> firmwareLabel.setText(phase + "..."));
+            }
 
+            @Override
+            public void connected(Module m) {
+                SwingUtilities.invokeLater(() -> {
+                    if (m != module) return;
+                    pendingConnect = null;
+                    registry.seen(mod);
+                    registry.setLast(mod.mac);
+                    saveRegistry();
+                    m.setPollInterval(POLL_INTERVAL);
+                    watchdog.watch(m);
+                    relay_1_button.setEnabled(true);
+                    relay_2_button.setEnabled(true);
+                    firmwareLabel.setText("Firmware: " + m.FIRMWARE);
+                    startUpdates();
+                });
+            }
 
+            @Override
+            public void failed(Module m, String reason) {
+                SwingUtilities.invokeLater(() -> {
+                    if (m != module) return;
+                    pendingConnect = null;
+                    firmwareLabel.setText("Firmware:      ");
+                    JOptionPane.showMessageDialog(MainWindow.this, "Unable to connect: " + reason);
+                });
+            }
+        });
+
+    }
+    
+    /**
+     * Open a dashboard watching every module in the selection list, apart
+     * from the one this window is connected to.
+     */
+    void openDashboard() {
+        List<ScanResult> list = new ArrayList<>();
+        for (int index = 0; index < choices.getSize(); index++) {
+            ScanResult sr = choices.getElementAt(index);
+            if (module == null || !module.isConnected() || !sr.ip.equals(module.ipAddress)) list.add(sr);
+        }
+        if (list.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No other modules have been found.");
+            return;
+        }
+        DashboardWindow.open(list, Integer.parseInt(this.portNumber.getText()), this.password.getText());
+    }
+    
+    /**
+     * Cancel a connection that is still being made.
+     */
+    void cancelConnect() {
+        if (pendingConnect != null) {
+            pendingConnect.cancel();
+            pendingConnect = null;
+            firmwareLabel.setText("Firmware:      ");
+        }
+    }
+    
+    /**
+     * Start updating the UI from the connected module.
+     */
+    void startUpdates() {
+        timer.cancel();
+        timer = new java.util.Timer(true);
         timer.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
@@ -160,7 +374,6 @@ public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, E
                 updateUI();
             }
         }, 0, 100);
-
     }
     
     /**
@@ -177,10 +390,19 @@ public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, E
     
     @Override
     public void moduleError(String e) {
-        JOptionPane.showMessageDialog(this, e);
-        module.close();
-        timer.cancel();
-        setUIState(false);
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, e));
+    }
+    
+    @Override
+    public void moduleError(Module m, String e) {
+        SwingUtilities.invokeLater(() -> {
+            if (m != module) return;    // from a module we have already moved on from
+            JOptionPane.showMessageDialog(this, e);
+            watchdog.unwatch(m);
+            m.close();
+            timer.cancel();
+            setUIState(false);
+        });
     }
     
     /**
@@ -234,7 +456,7 @@ public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, E
 
         jLabel2.setText("Password:");
 
-        moduleSelectionComboBox.setModel(new javax.swing.DefaultComboBoxModel<>(new String[] { "Select module." }));
+        moduleSelectionComboBox.setModel(choices);
         moduleSelectionComboBox.addPopupMenuListener(new javax.swing.event.PopupMenuListener() {
             public void popupMenuCanceled(javax.swing.event.PopupMenuEvent evt) {
             }
@@ -318,9 +540,10 @@ public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, E
     }// </editor-fold>//GEN-END:initComponents
 
     private void moduleSelected(javax.swing.event.PopupMenuEvent evt) {//GEN-FIRST:event_moduleSelected
-        if (moduleSelectionComboBox.getSelectedIndex() > 0) {
-            System.out.println("Selected -> " + moduleSelectionComboBox.getSelectedItem());
-            connectToModule(modules.get(moduleSelectionComboBox.getSelectedIndex() - 1));
+        ScanResult sr = (ScanResult) moduleSelectionComboBox.getSelectedItem();
+        if (sr != null) {
+            System.out.println("Selected -> " + sr.host_name + " (" + sr.ip + ")");
+            connectToModule(sr);
         }
         
     }//GEN-LAST:event_moduleSelected
@@ -350,7 +573,7 @@ public class MainWindow extends javax.swing.JFrame implements ETHScanDelegate, E
     private javax.swing.JLabel jLabel1;
     private javax.swing.JLabel jLabel2;
     private javax.swing.JPanel jPanel1;
-    private javax.swing.JComboBox<String> moduleSelectionComboBox;
+    private javax.swing.JComboBox<ScanResult> moduleSelectionComboBox;
     private javax.swing.JTextField password;
     private javax.swing.JTextField portNumber;
     private javax.swing.JLabel psuLabel;
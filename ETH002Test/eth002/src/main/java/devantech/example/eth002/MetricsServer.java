@@ -0,0 +1,303 @@
+package devantech.example.eth002;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Serves the state of a set of modules in OpenMetrics text format for
+ * Prometheus and similar scrapers. A scrape only reads the fields the poll
+ * loops have already filled in; it never talks to a module.
+ *
+ * The response is built in one byte buffer that is kept between scrapes, and
+ * the label text of each module is worked out once, so a scrape makes almost
+ * no garbage however many modules are registered.
+ */
+public class MetricsServer {
+
+    private static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final byte[] HELP_UP = help("eth002_up", "gauge", "1 if the client is connected to the module.");
+    private static final byte[] HELP_PSU = help("eth002_psu_volts", "gauge", "Supply voltage of the module.");
+    private static final byte[] HELP_RELAY = help("eth002_relay_state", "gauge", "1 if the relay is energised.");
+    private static final byte[] HELP_AGE = help("eth002_telemetry_age_seconds", "gauge", "Time since the last telemetry was received.");
+    private static final byte[] HELP_LATENCY = help("eth002_command_latency_seconds", "histogram", "Round trip time of exchanges with the module.");
+    private static final byte[] UP = ascii("eth002_up{");
+    private static final byte[] PSU = ascii("eth002_psu_volts{");
+    private static final byte[] RELAY = ascii("eth002_relay_state{");
+    private static final byte[] AGE = ascii("eth002_telemetry_age_seconds{");
+    private static final byte[] BUCKET = ascii("eth002_command_latency_seconds_bucket{");
+    private static final byte[] COUNT = ascii("eth002_command_latency_seconds_count{");
+    private static final byte[] SUM = ascii("eth002_command_latency_seconds_sum{");
+    private static final byte[] CLOSE = ascii("} ");
+    private static final byte[][] RELAY_LABELS = {ascii(",relay=\"1\"} "), ascii(",relay=\"2\"} ")};
+    private static final byte[][] LE_LABELS = leLabels();
+    private static final byte[] EOF = ascii("# EOF\n");
+
+    /**
+     * A registered module and its label text, which is rebuilt if the MAC
+     * address changes.
+     */
+    private static class Entry {
+        final Module module;
+        String mac = null;
+        byte[] labels;
+
+        Entry(Module m) {
+            module = m;
+        }
+
+        byte[] labels() {
+            String current = module.SERIAL;
+            if (!current.equals(mac)) {
+                mac = current;
+                labels = ("mac=\"" + escape(current) + "\",ip=\"" + escape(module.ipAddress) + "\"").getBytes(StandardCharsets.UTF_8);
+            }
+            return labels;
+        }
+    }
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private final HttpServer server;
+
+    private byte[] buf = new byte[64 * 1024];
+    private int length = 0;
+
+    /**
+     * Constructor. The server is not started until start is called.
+     * @param port the port to listen on, 0 for any free port
+     * @throws IOException if the port can not be opened
+     */
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this::handle);
+    }
+
+    /**
+     * Start serving.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop serving.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * @return the port the server is listening on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Include a module in the metrics.
+     * @param m the module
+     */
+    public void register(Module m) {
+        for (Entry e : entries) {
+            if (e.module == m) return;
+        }
+        entries.add(new Entry(m));
+    }
+
+    /**
+     * Leave a module out of the metrics.
+     * @param m the module
+     */
+    public void unregister(Module m) {
+        entries.removeIf((e) -> e.module == m);
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            if (!ex.getRequestMethod().equals("GET")) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            synchronized (this) {
+                render();
+                ex.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                ex.sendResponseHeaders(200, length);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(buf, 0, length);
+                }
+            }
+        } finally {
+            ex.close();
+        }
+    }
+
+    /**
+     * Write the whole exposition into buf.
+     */
+    synchronized void render() {
+        length = 0;
+        long now = System.nanoTime();
+
+        text(HELP_UP);
+        for (Entry e : entries) {
+            open(UP, e);
+            bytes(CLOSE);
+            number(e.module.isConnected() ? 1 : 0);
+            put((byte) '\n');
+        }
+
+        text(HELP_PSU);
+        for (Entry e : entries) {
+            open(PSU, e);
+            bytes(CLOSE);
+            int v = e.module.PSU;
+            number(v / 10);
+            put((byte) '.');
+            number(Math.abs(v % 10));
+            put((byte) '\n');
+        }
+
+        text(HELP_RELAY);
+        for (Entry e : entries) {
+            int outputs = e.module.DIGITAL_OUTPUTS.data;
+            for (int relay = 0; relay < RELAY_LABELS.length; relay++) {
+                open(RELAY, e);
+                bytes(RELAY_LABELS[relay]);
+                number((outputs >> relay) & 1);
+                put((byte) '\n');
+            }
+        }
+
+        text(HELP_AGE);
+        for (Entry e : entries) {
+            long updated = e.module.UPDATED;
+            if (updated == 0) continue;
+            open(AGE, e);
+            bytes(CLOSE);
+            seconds(Math.max(0, now - updated));     // a poll may land after now was read
+            put((byte) '\n');
+        }
+
+        text(HELP_LATENCY);
+        for (Entry e : entries) {
+            LatencyHistogram h = e.module.getLatency();
+            long cumulative = 0;
+            for (int index = 0; index < LE_LABELS.length; index++) {
+                cumulative += h.bucket(index);
+                open(BUCKET, e);
+                bytes(LE_LABELS[index]);
+                number(cumulative);
+                put((byte) '\n');
+            }
+            // The +Inf bucket is the count; reading it again could disagree
+            // with the buckets if a sample lands in between.
+            open(COUNT, e);
+            bytes(CLOSE);
+            number(cumulative);
+            put((byte) '\n');
+            open(SUM, e);
+            bytes(CLOSE);
+            seconds(h.sum());
+            put((byte) '\n');
+        }
+
+        text(EOF);
+    }
+
+    /**
+     * Start a sample line: the metric name, an open brace and the module's
+     * labels. Makes room for the whole line so the writes after it need not
+     * check the buffer size.
+     */
+    private void open(byte[] name, Entry e) {
+        byte[] labels = e.labels();
+        ensure(name.length + labels.length + 64);
+        bytes(name);
+        bytes(labels);
+    }
+
+    /**
+     * Write a positive number of nanoseconds as seconds with nine decimal places.
+     */
+    private void seconds(long nanos) {
+        number(nanos / 1_000_000_000L);
+        put((byte) '.');
+        long frac = nanos % 1_000_000_000L;
+        for (long div = 100_000_000L; div > 0; div /= 10) {
+            put((byte) ('0' + (frac / div) % 10));
+        }
+    }
+
+    /**
+     * Write a whole number in decimal. The caller must have made room.
+     */
+    private void number(long v) {
+        if (v < 0) {
+            put((byte) '-');
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) {
+            digits++;
+        }
+        for (int index = length + digits - 1; index >= length; index--) {
+            buf[index] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        length += digits;
+    }
+
+    private void text(byte[] b) {
+        ensure(b.length);
+        bytes(b);
+    }
+
+    /**
+     * Copy bytes in. The caller must have made room.
+     */
+    private void bytes(byte[] b) {
+        System.arraycopy(b, 0, buf, length, b.length);
+        length += b.length;
+    }
+
+    /**
+     * Add a byte. The caller must have made room.
+     */
+    private void put(byte b) {
+        buf[length++] = b;
+    }
+
+    private void ensure(int n) {
+        if (length + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + n));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] help(String name, String type, String help) {
+        return ascii("# TYPE " + name + " " + type + "\n# HELP " + name + " " + help + "\n");
+    }
+
+    private static byte[][] leLabels() {
+        byte[][] labels = new byte[LatencyHistogram.BOUNDS.length + 1][];
+        for (int index = 0; index < LatencyHistogram.BOUNDS.length; index++) {
+            labels[index] = ascii(String.format(Locale.ROOT, ",le=\"%.6f\"} ", LatencyHistogram.BOUNDS[index] / 1e6));
+        }
+        labels[LatencyHistogram.BOUNDS.length] = ascii(",le=\"+Inf\"} ");
+        return labels;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
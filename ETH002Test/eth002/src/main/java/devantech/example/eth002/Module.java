@@ -1,11 +1,15 @@
 package devantech.example.eth002;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,6 +21,32 @@ public class Module extends Thread {
     
     public interface ErrorCallback {
         void moduleError(String e);
+        
+        /**
+         * Called with the module that failed, so a callback shared by several
+         * modules can ignore ones it has finished with. By default passes the
+         * message on to moduleError(String).
+         */
+        default void moduleError(Module m, String e) {
+            moduleError(e);
+        }
+    }
+    
+    public interface TelemetryListener {
+        void telemetryUpdated(Module m);
+    }
+    
+    public interface CommandSink {
+        void send(ByteBuffer command);
+    }
+    
+    /**
+     * The classes of traffic to a module, most urgent first.
+     */
+    public enum Priority {
+        OPERATOR,       // commands from a person or a safety interlock
+        AUTOMATION,     // commands from schedules and rules
+        TELEMETRY       // polling for the PSU and output states
     }
     
     public class ByteData {
@@ -27,25 +57,18 @@ public class Module extends Thread {
         public volatile int data = 0;
     }
 
-    private static final byte GET_MODULE_INFO = 0x10;
-    private static final byte GET_DIGI_OUTPUT = 0x24;
-    private static final byte DIGITAL_OUTPUT_ACTIVE = 0x20;
-    private static final byte DIGITAL_OUTPUT_INACTIVE = 0x21;
-    private static final byte GET_SERIAL_NUMBER = 0x77;
-    private static final byte GET_PSU = 0x78;
-    private static final byte LOGOUT = 0x7B;
-    private static final byte SET_PASSWORD = 0x79;
-    private static final byte GET_UNLOCK = 0x7a;
-    
     public final String ipAddress;  // The address of the module
     public final int port;  // The port number
     public final String password;   // The TCP/IP Password to access the module
     
-    private final byte[] data = new byte[127];
-    private Socket socket = null;
+    private final Object io = new Object();   // Held for each command/response exchange, guards tx and rx
+    private final ByteBuffer tx = ByteBuffer.allocate(128);
+    private ByteBuffer rx = ByteBuffer.allocate(128);
+    private volatile Socket socket = null;
     private OutputStream output = null;
     private InputStream input = null;
-    private boolean connected = false;
+    private volatile boolean connected = false;
+    private volatile boolean closing = false;   // set by close, so the errors it causes are not reported as failures
     
     public volatile int ID = 0; // The module ID
     public volatile int FIRMWARE = 0;   // The firmware version
@@ -53,11 +76,23 @@ public class Module extends Thread {
     public volatile int PSU = 0;    // The supply voltage
     public volatile String SERIAL = ""; // The module serial number
     public final ByteData DIGITAL_OUTPUTS = new ByteData();  // The states of digital inputs
+    public volatile long UPDATED = 0;   // System.nanoTime() at the end of the last telemetry pass
+    public volatile long LOOPS = 0;     // The number of times round the poll loop, only written by the poll thread
+    
+    private final Object state = new Object();  // Held while PSU, DIGITAL_OUTPUTS, UPDATED and telemetry are changed together
+    private volatile TelemetryCache.Snapshot telemetry = null;  // The last telemetry pass as one consistent copy
     
-    List<byte[]> messages = new ArrayList<>();  // Holds commands to send to the module from the UI
+    private final CommandScheduler scheduler = new CommandScheduler();     // Decides what the poll loop sends next
+    private volatile int readTimeout = 0;   // ms to wait for an answer once connected, 0 for ever
 
     ErrorCallback err = null;
     
+    private final List<TelemetryListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile CommandSink sink = null;   // When set, output commands go here instead of the TCP connection
+    private WireCapture capture = null;     // When set, everything sent and received is recorded here
+    private final LatencyHistogram latency = new LatencyHistogram();   // Round trip times of exchanges with the module
+    private final LatencyHistogram actuation = new LatencyHistogram(); // Time from queueing an output command to its acknowledgement
+    
     Module(String ip, int p, String pass) {
         ipAddress = ip;
         port = p;
@@ -70,27 +105,11 @@ public class Module extends Thread {
 
         while(connected) {
             
-            // Send messages triggered from the UI here if there are any.
-            if (!messages.isEmpty()) {
-                
-                for (byte[] m : messages) {
-                    try {
-                        output.write(m, 0, m.length);
-                        input.read(m, 0, 1);
-                    } catch (IOException ex) {
-                        Logger.getLogger(Module.class.getName()).log(Level.SEVERE, null, ex);
-                        if (err != null) err.moduleError("Error sending command to module.");
-                        connected = false;
-                        break;
-                    }
-                }
-                
-                messages.clear();
-            }
+            // Wait for queued commands or for telemetry to be due, most urgent first.
+            Priority p = scheduler.next();
+            if (p == null) break;
             
-            // Get information from the module.
-            getPSU();
-            getDigitalOutputStates();
+            step(p);
             
         }
         
@@ -98,50 +117,356 @@ public class Module extends Thread {
         close();
     }
     
+    /**
+     * Do one step of the poll loop if anything is due, for a module serviced
+     * by a {@link FleetPoller} instead of its own thread.
+     * 
+     * @return 0 if something was sent, otherwise the nanoseconds until
+     * something might be due, or -1 if the module is no longer connected
+     */
+    long service() {
+        if (!connected) return -1;
+        Priority p = scheduler.due();
+        if (p == null) return connected ? scheduler.waitNanos() : -1;
+        step(p);
+        return connected ? 0 : -1;
+    }
+    
+    /**
+     * Send what the scheduler picked and count a time round the loop.
+     */
+    private void step(Priority p) {
+        Object cycle = ModuleEvents.beginPollCycle();
+        if (p == Priority.TELEMETRY) {
+            refresh();
+        } else {
+            flushQueued(p);
+        }
+        scheduler.done(p);
+        LOOPS++;
+        ModuleEvents.endPollCycle(cycle, ipAddress, p.name(), LOOPS);
+    }
+    
     public void subscribeForErrors(ErrorCallback e) {
         this.err = e;
     }
     
+    /**
+     * Add a listener to be called each time a telemetry pass completes.
+     * 
+     * @param l the listener to add
+     */
+    public void addTelemetryListener(TelemetryListener l) {
+        if (!listeners.contains(l)) listeners.add(l);
+    }
+    
+    /**
+     * Remove a telemetry listener from this module.
+     * 
+     * @param l the listener to remove
+     */
+    public void removeTelemetryListener(TelemetryListener l) {
+        listeners.remove(l);
+    }
+    
+    /**
+     * Read the PSU and output states from the module and notify the telemetry
+     * listeners. Safe to call from threads other than the poll loop.
+     * 
+     * @return true if the module is still connected afterwards.
+     */
+    public boolean refresh() {
+        synchronized (io) {
+            if (!connected) return false;
+            
+            // Both requests go in one write so a pass costs a single round trip.
+            tx.clear();
+            int n = ModuleCodec.encode(tx, ModuleCodec.GET_PSU);
+            n += ModuleCodec.encode(tx, ModuleCodec.GET_DIGI_OUTPUT);
+            if (!exchange(n, "Error getting PSU.")) return false;
+            
+            int psu = ModuleCodec.decodeByte(rx);
+            updateTelemetry(psu, ModuleCodec.decodeByte(rx));
+        }
+        notifyTelemetry();
+        return true;
+    }
+    
+    /**
+     * Update the module state from data that was pushed to us rather than
+     * polled, and notify the telemetry listeners.
+     * 
+     * @param psu the supply voltage in tenths of a volt, or -1 to leave it unchanged
+     * @param outputs the output states, or -1 to leave them unchanged
+     */
+    void pushTelemetry(int psu, int outputs) {
+        updateTelemetry(psu, outputs);
+        notifyTelemetry();
+    }
+    
+    /**
+     * Update the state of one output from data that was pushed to us, leaving
+     * the others as they are, and notify the telemetry listeners.
+     * 
+     * @param channel the output, starting at 1
+     * @param active true if the output is active
+     */
+    void pushOutput(int channel, boolean active) {
+        int bit = 1 << (channel - 1);
+        synchronized (state) {
+            int o = DIGITAL_OUTPUTS.data & 0xff;
+            updateTelemetry(-1, active ? o | bit : o & ~bit);
+        }
+        notifyTelemetry();
+    }
+    
+    /**
+     * Store the results of a telemetry pass, along with a snapshot of them
+     * that readers on other threads can take without seeing half of a pass.
+     * 
+     * @param psu the supply voltage in tenths of a volt, or -1 to leave it unchanged
+     * @param outputs the output states, or -1 to leave them unchanged
+     */
+    private void updateTelemetry(int psu, int outputs) {
+        synchronized (state) {
+            if (psu < 0) psu = PSU;
+            byte o = outputs < 0 ? DIGITAL_OUTPUTS.data : (byte) outputs;
+            long now = System.nanoTime();
+            PSU = psu;
+            DIGITAL_OUTPUTS.data = o;
+            UPDATED = now;
+            telemetry = new TelemetryCache.Snapshot(TelemetryCache.key(this), psu, o, now);
+        }
+    }
+    
+    /**
+     * @return the values and time of the last telemetry pass, all from the
+     * same pass, or null if there has not been one.
+     */
+    public TelemetryCache.Snapshot getTelemetry() {
+        return telemetry;
+    }
+    
+    /**
+     * Send output commands somewhere other than the TCP connection, such as an
+     * MQTT broker. Pass null to go back to the TCP connection.
+     * 
+     * @param s where to send the commands
+     */
+    void setCommandSink(CommandSink s) {
+        sink = s;
+    }
+    
+    /**
+     * @return the round trip times of every exchange with the module.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+    
+    /**
+     * @return the times from output commands being queued to the module acknowledging them.
+     */
+    public LatencyHistogram getActuationLatency() {
+        return actuation;
+    }
+    
+    /**
+     * Set how long the poll loop rests between telemetry passes. With 0 the
+     * module is polled as fast as it answers. Queued commands are sent during
+     * the rest as soon as they arrive.
+     * 
+     * @param ms the rest in milliseconds
+     */
+    public void setPollInterval(int ms) {
+        scheduler.setPollInterval(Math.max(0, ms));
+    }
+    
+    /**
+     * Cap the exchanges per second with the module. Operator commands are
+     * counted but never held back.
+     * 
+     * @param rate the exchanges per second, 0 for no cap
+     * @param burst how many exchanges can go at once after a quiet spell
+     */
+    public void setRateLimit(double rate, int burst) {
+        scheduler.setRateLimit(rate, burst);
+    }
+    
+    /**
+     * Share a capped link with other modules.
+     * 
+     * @param g the link, or null for none
+     */
+    public void setGateway(CommandScheduler.Gateway g) {
+        scheduler.setGateway(g);
+    }
+    
+    /**
+     * Set how long to wait for the module to answer once connected. A module
+     * that does not answer in time is disconnected and the error callback
+     * called. Must be set before connecting.
+     * 
+     * @param ms the time in milliseconds, 0 to wait forever
+     */
+    public void setReadTimeout(int ms) {
+        readTimeout = Math.max(0, ms);
+    }
+    
+    /**
+     * @param r called whenever an output command is queued, or null for none
+     */
+    void setReadyListener(Runnable r) {
+        scheduler.setReadyListener(r);
+    }
+    
+    /**
+     * Record all traffic with the module. Must be set before connecting.
+     * 
+     * @param c the capture to record to, or null to stop recording on the next connection
+     */
+    public void setCapture(WireCapture c) {
+        capture = c;
+    }
+    
+    private void notifyTelemetry() {
+        for (TelemetryListener l : listeners) {
+            l.telemetryUpdated(this);
+        }
+    }
+    
+    /**
+     * @return true while the connection to the module is open.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+    
     /**
      * Try and connect to the module.
      * 
      * @throws IOException 
      */
     public void connect() throws IOException {
-        socket = new Socket(ipAddress, port);
-        output = socket.getOutputStream();
-        input = socket.getInputStream();
-        
-        connected = true;
-        
-        if (getUnlock() == 0) {
-            sendPassword();
-            if (getUnlock() == 0) {
-                if (err != null) err.moduleError("Wrong password.");
-                return;
-            }
+        connect(0);
+    }
+    
+    /**
+     * Try and connect to the module, log in and start polling it.
+     * 
+     * @param timeout the time in milliseconds to wait for the TCP connection
+     * and for the module to answer the login, 0 to wait forever
+     * @throws IOException 
+     */
+    public void connect(int timeout) throws IOException {
+        open(timeout);
+        try {
+            handshake(timeout);
+        } catch (IOException ex) {
+            abandon(ex.getMessage());
+            throw ex;
         }
-        
-        getModuleData();
-        getSerialNumber();
-        
         this.start();
     }
     
+    /**
+     * Open the TCP connection to the module.
+     * 
+     * @param timeout the connect timeout in milliseconds, 0 to wait forever
+     * @throws IOException if the module can not be reached.
+     */
+    public void open(int timeout) throws IOException {
+        Object event = ModuleEvents.beginConnectPhase();
+        try {
+            Socket s = new Socket();
+            synchronized (io) {
+                socket = s;
+            }
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(ipAddress, port), timeout);
+            synchronized (io) {
+                if (socket != s || closing) throw new SocketException("Socket closed");
+                output = s.getOutputStream();
+                input = s.getInputStream();
+                if (capture != null) {
+                    output = capture.tap(output);
+                    input = capture.tap(input);
+                }
+                connected = true;
+            }
+        } finally {
+            commitPhase(event, "open");
+        }
+    }
+    
+    /**
+     * Log in to the module and read its details and first telemetry. The
+     * requests are pipelined so this takes one round trip, or two when a
+     * password has to be sent first, because the module takes the rest of a
+     * password packet as the password.
+     * 
+     * @param timeout the time in milliseconds to wait for each answer, 0 to wait forever
+     * @throws IOException if the module does not answer or the password is wrong.
+     */
+    public void handshake(int timeout) throws IOException {
+        synchronized (io) {
+            if (!connected) throw new SocketException("Not connected.");
+            socket.setSoTimeout(timeout);
+            Object event = ModuleEvents.beginConnectPhase();
+            try {
+                if (!password.isEmpty()) {
+                    tx.clear();
+                    transmit(ModuleCodec.encodePassword(tx, password));
+                    commitPhase(event, "password");
+                    event = ModuleEvents.beginConnectPhase();
+                }
+                
+                tx.clear();
+                ModuleCodec.encode(tx, ModuleCodec.GET_UNLOCK);
+                int n = ModuleCodec.encode(tx, ModuleCodec.GET_MODULE_INFO);
+                n += ModuleCodec.encode(tx, ModuleCodec.GET_SERIAL_NUMBER);
+                n += ModuleCodec.encode(tx, ModuleCodec.GET_PSU);
+                n += ModuleCodec.encode(tx, ModuleCodec.GET_DIGI_OUTPUT);
+                transmit(1);
+                if (ModuleCodec.decodeByte(rx) == 0) throw new IOException("Wrong password.");
+                
+                readFully(n);
+                ID = ModuleCodec.decodeByte(rx);
+                HARDWARE = ModuleCodec.decodeByte(rx);
+                FIRMWARE = ModuleCodec.decodeByte(rx);
+                SERIAL = ModuleCodec.decodeMac(rx);
+                int psu = ModuleCodec.decodeByte(rx);
+                updateTelemetry(psu, ModuleCodec.decodeByte(rx));
+            } finally {
+                commitPhase(event, "login");
+                if (!socket.isClosed()) socket.setSoTimeout(readTimeout);
+            }
+        }
+        notifyTelemetry();
+    }
+    
+    /**
+     * End a connect phase event and commit it if it is being recorded. The
+     * phase succeeded if the connection is still open.
+     */
+    private void commitPhase(Object event, String phase) {
+        ModuleEvents.endConnectPhase(event, ipAddress, phase, connected);
+    }
+    
     /**
      * Close the connection to the module
      */
     public void close() {
-        if (socket != null) {
+        closing = true;
+        Socket s = socket;
+        if (s != null) {
             try {
-                socket.close();
-                socket = null;
-                input = null;
-                output = null;
+                s.close();
             } catch (IOException ex) {
                 // Nothing to do here, the module was either already closed or was unable to close properly.
             }
             connected = false;
+            scheduler.close();
         }
     }
     
@@ -151,22 +476,15 @@ public class Module extends Thread {
      * @return the unlock time.
      */
     public byte getUnlock() {
-        
-        if (!connected) return -1;
-        
-        data[0] = GET_UNLOCK;
-
-        try {
-            output.write(data, 0, 1);
-            input.read(data, 0, 1);
-        } catch (IOException ex) {
-            Logger.getLogger(Module.class.getName()).log(Level.SEVERE, null, ex);
-            if (err != null) err.moduleError("Error getting unlock time.");
-            connected = false;
-            return -1;
+        synchronized (io) {
+            if (!connected) return -1;
+            
+            tx.clear();
+            int n = ModuleCodec.encode(tx, ModuleCodec.GET_UNLOCK);
+            if (!exchange(n, "Error getting unlock time.")) return -1;
+            
+            return (byte) ModuleCodec.decodeByte(rx);
         }
-
-        return data[0];
     }
     
     /**
@@ -175,54 +493,37 @@ public class Module extends Thread {
      * @return 1 for success, otherwise is a fail.
      */
     public final byte sendPassword() {
-        
-        if (!connected) return -1;
-        
-        data[0] = SET_PASSWORD;
-        
-        int index;
-        for (index = 0; index < password.length(); index++) {
-            data[1 + index] = (byte) (password.charAt(index) & 0xff);
-        }
-
-        try {
-            output.write(data, 0, password.length() + 1);
-            input.read(data, 0, 1);
-        } catch (IOException ex) {
-            Logger.getLogger(Module.class.getName()).log(Level.SEVERE, null, ex);
-            if (err != null) err.moduleError("Error sending password.");
-            connected = false;
-            return -1;
+        synchronized (io) {
+            if (!connected) return -1;
+            
+            tx.clear();
+            int n = ModuleCodec.encodePassword(tx, password);
+            if (!exchange(n, "Error sending password.")) return -1;
+            
+            return (byte) ModuleCodec.decodeByte(rx);
         }
-
-        return data[0];
-
     }
     
     /**
      * Get the module information such as the ID and the firmware version.
      */
     public final void getModuleData() {
-
-        if (!connected) return;
-        
-        data[0] = GET_MODULE_INFO;
-
-        try {
-            output.write(data, 0, 1);
-            input.read(data, 0, 3);
-            ID = data[0];
-            HARDWARE = data[1];
-            FIRMWARE = data[2];
-        } catch (IOException ex) {
-            Logger.getLogger(Module.class.getName()).log(Level.SEVERE, null, ex);
-            if (err != null) err.moduleError("Error getting module data.");
-            connected = false;
-            ID = 0;
-            HARDWARE = 0;
-            FIRMWARE = 0;
+        synchronized (io) {
+            if (!connected) return;
+            
+            tx.clear();
+            int n = ModuleCodec.encode(tx, ModuleCodec.GET_MODULE_INFO);
+            if (!exchange(n, "Error getting module data.")) {
+                ID = 0;
+                HARDWARE = 0;
+                FIRMWARE = 0;
+                return;
+            }
+            
+            ID = ModuleCodec.decodeByte(rx);
+            HARDWARE = ModuleCodec.decodeByte(rx);
+            FIRMWARE = ModuleCodec.decodeByte(rx);
         }
-
     }
     
     /**
@@ -230,23 +531,15 @@ public class Module extends Thread {
      *
      */
     public void getSerialNumber() {
-        
-        if (!connected) return;
-        
-        data[0] = GET_SERIAL_NUMBER;
-
-        try {
-            output.write(data, 0, 1);
-            input.read(data, 0, 6);
-        } catch (IOException ex) {
-            Logger.getLogger(Module.class.getName()).log(Level.SEVERE, null, ex);
-            if (err != null) err.moduleError("Error sgetting serial number.");
-            connected = false;
-            return;
+        synchronized (io) {
+            if (!connected) return;
+            
+            tx.clear();
+            int n = ModuleCodec.encode(tx, ModuleCodec.GET_SERIAL_NUMBER);
+            if (!exchange(n, "Error getting serial number.")) return;
+            
+            SERIAL = ModuleCodec.decodeMac(rx);
         }
-
-        SERIAL = String.format("%02X:%02X:%02X:%02X:%02X:%02X", data[0],data[1],data[2],data[3],data[4],data[5]);
-      
     }
 
     /**
@@ -254,20 +547,13 @@ public class Module extends Thread {
      *
      */
     public void logout() {
-        
-        if (!connected) return;
-        
-        data[0] = LOGOUT;
-
-        try {
-            output.write(data, 0, 1);
-            input.read(data, 0, 1);
-        } catch (IOException ex) {
-            Logger.getLogger(Module.class.getName()).log(Level.SEVERE, null, ex);
-            if (err != null) err.moduleError("Error logging out.");
-            connected = false;
+        synchronized (io) {
+            if (!connected) return;
+            
+            tx.clear();
+            int n = ModuleCodec.encode(tx, ModuleCodec.LOGOUT);
+            exchange(n, "Error logging out.");
         }
-
     }
     
     /**
@@ -275,21 +561,16 @@ public class Module extends Thread {
      *
      */
     public void getPSU() {
-        
-        if (!connected) return;
-        
-        data[0] = GET_PSU;
-
-        try {
-            output.write(data, 0, 1);
-            input.read(data, 0, 1);
-            PSU = data[0];
-        } catch (IOException ex) {
-            Logger.getLogger(Module.class.getName()).log(Level.SEVERE, null, ex);
-            if (err != null) err.moduleError("Error getting PSU.");
-            connected = false;
+        synchronized (io) {
+            if (!connected) return;
+            
+            tx.clear();
+            int n = ModuleCodec.encode(tx, ModuleCodec.GET_PSU);
+            if (!exchange(n, "Error getting PSU.")) return;
+            
+            updateTelemetry(ModuleCodec.decodeByte(rx), -1);
         }
-
+        notifyTelemetry();
     }    
     
     /**
@@ -297,61 +578,193 @@ public class Module extends Thread {
      *
      */
     public void getDigitalOutputStates() {
-
-        if (!connected) return;
-        
-        data[0] = GET_DIGI_OUTPUT;
-
-        try {
-            output.write(data, 0, 1);
-            input.read(data, 0, 1);
-        } catch (IOException ex) {
-            Logger.getLogger(Module.class.getName()).log(Level.SEVERE, null, ex);
-            if (err != null) err.moduleError("Error getting output states.");
-            connected = false;
-            return;
+        synchronized (io) {
+            if (!connected) return;
+            
+            tx.clear();
+            int n = ModuleCodec.encode(tx, ModuleCodec.GET_DIGI_OUTPUT);
+            if (!exchange(n, "Error getting output states.")) return;
+            
+            updateTelemetry(-1, ModuleCodec.decodeByte(rx));
         }
-        
-        DIGITAL_OUTPUTS.data = data[0];
-
+        notifyTelemetry();
     }
     
     /**
-     * Make a digital output on the module active.
+     * Make a digital output on the module active, as an operator command.
      *
      * @param channel the output to set active
      * @param time the length of time to set the output active
      */
     public void digitalOutputActive(int channel, int time) {
-        
-        if (!connected) return;
-        
-        byte[] mData = new byte[3];
-        mData[0] = DIGITAL_OUTPUT_ACTIVE;
-        mData[1] = (byte) (channel & 0xff);
-        mData[2] = (byte) (time & 0xff);
-
-        messages.add(mData);
-        
+        queueOutput(Priority.OPERATOR, true, channel, time);
     }
     
     /**
-     * Make a digital output on the module inactive.
+     * Make a digital output on the module active.
+     *
+     * @param channel the output to set active
+     * @param time the length of time to set the output active
+     * @param p the class of the command, OPERATOR or AUTOMATION
+     */
+    public void digitalOutputActive(int channel, int time, Priority p) {
+        queueOutput(p, true, channel, time);
+    }
+    
+    /**
+     * Make a digital output on the module inactive, as an operator command.
      *
      * @param channel the output to set active
      * @param time the length of time to set the output active
      */
     public void digitalOutputInactive(int channel, int time) {
+        queueOutput(Priority.OPERATOR, false, channel, time);
+    }
+    
+    /**
+     * Make a digital output on the module inactive.
+     *
+     * @param channel the output to set active
+     * @param time the length of time to set the output active
+     * @param p the class of the command, OPERATOR or AUTOMATION
+     */
+    public void digitalOutputInactive(int channel, int time, Priority p) {
+        queueOutput(p, false, channel, time);
+    }
+    
+    /**
+     * Encode an output command straight into the scheduler lane for its
+     * class, to be sent by the poll loop.
+     */
+    private void queueOutput(Priority p, boolean active, int channel, int time) {
+        
+        CommandSink cs = sink;
+        if (cs != null) {
+            ByteBuffer b = ByteBuffer.allocate(3);
+            ModuleCodec.encodeOutput(b, active, channel, time);
+            b.flip();
+            cs.send(b);
+            return;
+        }
         
         if (!connected) return;
         
-        byte[] mData = new byte[3];
-        mData[0] = DIGITAL_OUTPUT_INACTIVE;
-        mData[1] = (byte) (channel & 0xff);
-        mData[2] = (byte) (time & 0xff);
-
-        messages.add(mData);
+        scheduler.submit(p, active, channel, time);
+        
+    }
+    
+    /**
+     * Send all queued output commands of one class to the module in a single
+     * write and read back their acknowledgements.
+     */
+    private void flushQueued(Priority p) {
+        
+        CommandScheduler.Batch send = scheduler.drain(p);
+        int acks = send.acks;
+        if (acks == 0) return;
         
+        synchronized (io) {
+            if (!connected) return;
+            Object event = ModuleEvents.beginCommand();
+            boolean ok = false;
+            try {
+                long start = System.nanoTime();
+                output.write(send.commands.array(), 0, send.commands.position());
+                if (rx.capacity() < acks) rx = ByteBuffer.allocate(acks);
+                readFully(acks);
+                long end = System.nanoTime();
+                latency.record(end - start);
+                actuation.record(end - send.since);
+                ok = true;
+            } catch (IOException ex) {
+                failed(ex, "Error sending command to module.");
+            } finally {
+                commitCommand(event, send.commands.array()[0], send.commands.position(), acks, ok);
+            }
+        }
+        
+    }
+    
+    /**
+     * Write the command encoded in tx and read the response into rx, leaving
+     * rx ready to decode. Must be called holding io.
+     * 
+     * @param responseLength the number of bytes to read back
+     * @param error the message to report to the error callback on failure
+     * @return false if the exchange failed and the module is now disconnected.
+     */
+    private boolean exchange(int responseLength, String error) {
+        try {
+            transmit(responseLength);
+            return true;
+        } catch (IOException ex) {
+            failed(ex, error);
+            return false;
+        }
+    }
+    
+    /**
+     * Mark the module disconnected after an exchange failed, and report it
+     * unless it failed because the module is being closed.
+     */
+    private void failed(IOException ex, String error) {
+        connected = false;
+        if (closing) return;
+        Logger.getLogger(Module.class.getName()).log(Level.SEVERE, null, ex);
+        if (err != null) err.moduleError(this, error);
+    }
+    
+    /**
+     * Close the module because it has failed, and report why to the error
+     * callback. Nothing is reported if the module was already being closed.
+     * 
+     * @param reason why the module was given up on
+     */
+    void abandon(String reason) {
+        boolean reported = closing;
+        close();
+        if (!reported && err != null) err.moduleError(this, reason);
+    }
+    
+    /**
+     * Write the command encoded in tx and read the response into rx. Must be
+     * called holding io.
+     */
+    private void transmit(int responseLength) throws IOException {
+        Object event = ModuleEvents.beginCommand();
+        boolean ok = false;
+        try {
+            long start = System.nanoTime();
+            output.write(tx.array(), 0, tx.position());
+            readFully(responseLength);
+            latency.record(System.nanoTime() - start);
+            ok = true;
+        } finally {
+            commitCommand(event, tx.array()[0], tx.position(), responseLength, ok);
+        }
+    }
+    
+    /**
+     * End a command event and commit it if it is being recorded.
+     */
+    private void commitCommand(Object event, byte opcode, int sent, int received, boolean ok) {
+        ModuleEvents.endCommand(event, ipAddress, opcode & 0xff, sent, received, ok);
+    }
+    
+    /**
+     * Read exactly n bytes into rx. A single read on the socket can return
+     * part of a response, so keep reading until it is all here.
+     */
+    private void readFully(int n) throws IOException {
+        byte[] b = rx.array();
+        int got = 0;
+        while (got < n) {
+            int r = input.read(b, got, n - got);
+            if (r < 0) throw new EOFException("Module closed the connection.");
+            got += r;
+        }
+        rx.clear();
+        rx.limit(n);
     }
     
 }
@@ -0,0 +1,147 @@
+package devantech.example.eth002;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes commands for, and decodes responses from, the ETH002 TCP command
+ * port. The codec holds no state and never allocates on the command path:
+ * commands are written into a buffer supplied by the caller at its current
+ * position, and responses are read from the caller's buffer the same way.
+ * Heap and direct buffers both work, and any number of commands can be
+ * encoded back to back into one buffer and sent with a single write.
+ *
+ * Every command gets a fixed length response which can be found with
+ * {@link #responseLength(byte)}.
+ */
+public final class ModuleCodec {
+
+    public static final byte GET_MODULE_INFO = 0x10;
+    public static final byte DIGITAL_OUTPUT_ACTIVE = 0x20;
+    public static final byte DIGITAL_OUTPUT_INACTIVE = 0x21;
+    public static final byte GET_DIGI_OUTPUT = 0x24;
+    public static final byte GET_SERIAL_NUMBER = 0x77;
+    public static final byte GET_PSU = 0x78;
+    public static final byte SET_PASSWORD = 0x79;
+    public static final byte GET_UNLOCK = 0x7a;
+    public static final byte LOGOUT = 0x7B;
+
+    /**
+     * The length of the longest response the module sends.
+     */
+    public static final int MAX_RESPONSE = 6;
+
+    private ModuleCodec() {
+    }
+
+    /**
+     * Get the number of bytes the module responds to a command with.
+     *
+     * @param command the command code
+     * @return the length of the response
+     */
+    public static int responseLength(byte command) {
+        switch (command) {
+            case GET_MODULE_INFO:
+                return 3;
+            case GET_SERIAL_NUMBER:
+                return 6;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Encode a command that takes no arguments, such as GET_PSU.
+     *
+     * @param dst the buffer to write to
+     * @param command the command code
+     * @return the number of response bytes to expect
+     */
+    public static int encode(ByteBuffer dst, byte command) {
+        dst.put(command);
+        return responseLength(command);
+    }
+
+    /**
+     * Encode the password command.
+     *
+     * @param dst the buffer to write to
+     * @param password the password, each character is sent as one byte
+     * @return the number of response bytes to expect
+     */
+    public static int encodePassword(ByteBuffer dst, CharSequence password) {
+        dst.put(SET_PASSWORD);
+        for (int index = 0; index < password.length(); index++) {
+            dst.put((byte) (password.charAt(index) & 0xff));
+        }
+        return responseLength(SET_PASSWORD);
+    }
+
+    /**
+     * Encode a command to change the state of a digital output.
+     *
+     * @param dst the buffer to write to
+     * @param active true to make the output active
+     * @param channel the output number, starting at 1
+     * @param time the pulse time, 0 for a permanent change
+     * @return the number of response bytes to expect
+     */
+    public static int encodeOutput(ByteBuffer dst, boolean active, int channel, int time) {
+        dst.put(active ? DIGITAL_OUTPUT_ACTIVE : DIGITAL_OUTPUT_INACTIVE);
+        dst.put((byte) (channel & 0xff));
+        dst.put((byte) (time & 0xff));
+        return responseLength(DIGITAL_OUTPUT_ACTIVE);
+    }
+
+    /**
+     * Decode a one byte response as an unsigned value. Used for the unlock
+     * time, the PSU voltage, the output states and command acknowledgements.
+     *
+     * @param src the buffer to read from
+     * @return the value, 0 to 255
+     */
+    public static int decodeByte(ByteBuffer src) {
+        return src.get() & 0xff;
+    }
+
+    /**
+     * Decode the six byte response to GET_SERIAL_NUMBER.
+     *
+     * @param src the buffer to read from
+     * @return the MAC address as colon separated upper case hex pairs, the
+     * form used for MAC addresses throughout
+     */
+    public static String decodeMac(ByteBuffer src) {
+        char[] out = new char[17];
+        for (int index = 0; index < 6; index++) {
+            int b = src.get() & 0xff;
+            if (index > 0) out[index * 3 - 1] = ':';
+            out[index * 3] = Character.toUpperCase(Character.forDigit(b >> 4, 16));
+            out[index * 3 + 1] = Character.toUpperCase(Character.forDigit(b & 0xf, 16));
+        }
+        return new String(out);
+    }
+
+    /**
+     * Work out whether a buffer holds all of a response yet. For use by non
+     * blocking transports that receive responses in pieces.
+     *
+     * @param src the buffer, ready for reading
+     * @param command the command the response is for
+     * @return true if the whole response can be decoded.
+     */
+    public static boolean complete(ByteBuffer src, byte command) {
+        return src.remaining() >= responseLength(command);
+    }
+
+    /**
+     * Get the command code of an encoded command without moving the buffer.
+     *
+     * @param src a buffer whose position is at the start of a command
+     * @return the command code
+     */
+    public static byte command(ByteBuffer src) {
+        return src.get(src.position());
+    }
+
+}
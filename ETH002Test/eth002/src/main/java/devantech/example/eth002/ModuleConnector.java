@@ -0,0 +1,168 @@
+package devantech.example.eth002;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connects to modules on background threads so callers such as the Swing
+ * event thread never block on the network. Progress is reported through a
+ * callback on the connecting thread, and a connection that is under way can be
+ * cancelled at any point.
+ */
+public class ModuleConnector {
+
+    /**
+     * Should be implemented by classes that want to follow a connection.
+     * Methods are called on the connecting thread, not the caller's.
+     */
+    public interface Progress {
+
+        /**
+         * Called as each stage of the connection starts.
+         * @param m the module being connected
+         * @param phase a description of the stage
+         */
+        void phase(Module m, String phase);
+
+        /**
+         * Called once the module is logged in and being polled.
+         * @param m the module
+         */
+        void connected(Module m);
+
+        /**
+         * Called if the connection could not be made. Not called for a
+         * connection that was cancelled.
+         * @param m the module
+         * @param reason why it failed
+         */
+        void failed(Module m, String reason);
+
+    }
+
+    /**
+     * A connection that has been started.
+     */
+    public static class Pending {
+
+        /**
+         * The module being connected
+         */
+        public final Module module;
+
+        private volatile boolean cancelled = false;
+        private volatile Future<?> future;
+
+        Pending(Module m) {
+            module = m;
+        }
+
+        /**
+         * Stop the connection. Closing the socket breaks out of a blocking
+         * connect or read straight away.
+         */
+        public void cancel() {
+            cancelled = true;
+            module.close();
+            if (future != null) future.cancel(true);
+        }
+
+        /**
+         * @return true if cancel has been called.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return true once the connection has succeeded, failed or been cancelled.
+         */
+        public boolean isDone() {
+            return future != null && future.isDone();
+        }
+
+    }
+
+    private final ExecutorService pool;
+
+    /**
+     * Constructor
+     * @param threads the most connections to make at the same time
+     */
+    public ModuleConnector(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threads, (r) -> {
+            Thread t = new Thread(r, "module-connect-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Start connecting to a module.
+     *
+     * @param m the module to connect
+     * @param timeout the connect and login timeout in milliseconds
+     * @param p where to report progress
+     * @return a handle that can be used to cancel the connection
+     */
+    public Pending connect(Module m, int timeout, Progress p) {
+        return connect(m, timeout, p, true);
+    }
+
+    /**
+     * Start connecting to a module that will be polled by something else,
+     * such as a {@link FleetPoller}, so its own poll thread is not started.
+     *
+     * @param m the module to connect
+     * @param timeout the connect and login timeout in milliseconds
+     * @param p where to report progress
+     * @return a handle that can be used to cancel the connection
+     */
+    Pending login(Module m, int timeout, Progress p) {
+        return connect(m, timeout, p, false);
+    }
+
+    private Pending connect(Module m, int timeout, Progress p, boolean poll) {
+        Pending pending = new Pending(m);
+        pending.future = pool.submit(() -> {
+            try {
+                p.phase(m, "Connecting to " + m.ipAddress + ":" + m.port);
+                m.open(timeout);
+                if (pending.cancelled) {
+                    m.close();  // cancel may have closed the module before open made its socket
+                    return;
+                }
+
+                p.phase(m, "Logging in");
+                m.handshake(timeout);
+                if (pending.cancelled) {
+                    m.close();
+                    return;
+                }
+
+                if (poll) m.start();
+                p.connected(m);
+            } catch (IOException ex) {
+                m.close();
+                if (pending.cancelled) return;
+                Logger.getLogger(ModuleConnector.class.getName()).log(Level.WARNING, m.ipAddress, ex);
+                p.failed(m, ex.getMessage() == null ? ex.toString() : ex.getMessage());
+            }
+        });
+        return pending;
+    }
+
+    /**
+     * Stop the connecting threads. Connections under way are cancelled.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+}
@@ -0,0 +1,166 @@
+package devantech.example.eth002;
+
+import java.net.InetAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java Flight Recorder events raised by Module and ETHScan. They show up in a
+ * recording under "ETH002" next to the JVM's own socket, GC and thread events,
+ * so time spent waiting on a module can be told apart from time spent in the
+ * client.
+ *
+ * The events themselves are in JfrEvents, which is built from its own source
+ * set because jdk.jfr is missing from Java 8 before update 262 and from some
+ * Java 8 builds since. Whether it is there is checked once, when this class is
+ * loaded; without it every call here does nothing.
+ *
+ * Each call site follows the usual pattern: begin an event, do the work, then
+ * end it with its fields, which are only filled in if something is recording.
+ */
+final class ModuleEvents {
+
+    /**
+     * Where the events go. Each begin returns the event to hand to the
+     * matching end.
+     */
+    interface Recorder {
+
+        Object beginCommand();
+
+        void endCommand(Object event, String module, int opcode, int sent, int received, boolean succeeded);
+
+        Object beginPollCycle();
+
+        void endPollCycle(Object event, String module, String priority, long loop);
+
+        Object beginConnectPhase();
+
+        void endConnectPhase(Object event, String module, String phase, boolean succeeded);
+
+        Object beginDiscovery();
+
+        void endDiscovery(Object event, InetAddress source, int length, String mac, String reason);
+
+    }
+
+    /**
+     * Used when the runtime has no Flight Recorder.
+     */
+    static final class None implements Recorder {
+
+        @Override
+        public Object beginCommand() {
+            return null;
+        }
+
+        @Override
+        public void endCommand(Object event, String module, int opcode, int sent, int received, boolean succeeded) {
+        }
+
+        @Override
+        public Object beginPollCycle() {
+            return null;
+        }
+
+        @Override
+        public void endPollCycle(Object event, String module, String priority, long loop) {
+        }
+
+        @Override
+        public Object beginConnectPhase() {
+            return null;
+        }
+
+        @Override
+        public void endConnectPhase(Object event, String module, String phase, boolean succeeded) {
+        }
+
+        @Override
+        public Object beginDiscovery() {
+            return null;
+        }
+
+        @Override
+        public void endDiscovery(Object event, InetAddress source, int length, String mac, String reason) {
+        }
+
+    }
+
+    private static final Recorder RECORDER = load();
+
+    private ModuleEvents() {
+    }
+
+    private static Recorder load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return new None();
+        }
+        try {
+            return (Recorder) Class.forName(ModuleEvents.class.getPackage().getName() + ".JfrEvents")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            Logger.getLogger(ModuleEvents.class.getName()).log(Level.WARNING, "Flight Recorder events not available.", ex);
+            return new None();
+        }
+    }
+
+    /**
+     * Start timing one write to a module and the read of its responses.
+     * Pipelined requests and batches of output commands are a single event.
+     */
+    static Object beginCommand() {
+        return RECORDER.beginCommand();
+    }
+
+    /**
+     * @param opcode the first command byte written
+     */
+    static void endCommand(Object event, String module, int opcode, int sent, int received, boolean succeeded) {
+        RECORDER.endCommand(event, module, opcode, sent, received, succeeded);
+    }
+
+    /**
+     * Start timing one time round a module's poll loop, not counting the wait
+     * for work.
+     */
+    static Object beginPollCycle() {
+        return RECORDER.beginPollCycle();
+    }
+
+    /**
+     * @param priority what the loop sent: OPERATOR, AUTOMATION or TELEMETRY
+     */
+    static void endPollCycle(Object event, String module, String priority, long loop) {
+        RECORDER.endPollCycle(event, module, priority, loop);
+    }
+
+    /**
+     * Start timing one step of connecting to a module.
+     */
+    static Object beginConnectPhase() {
+        return RECORDER.beginConnectPhase();
+    }
+
+    static void endConnectPhase(Object event, String module, String phase, boolean succeeded) {
+        RECORDER.endConnectPhase(event, module, phase, succeeded);
+    }
+
+    /**
+     * Start timing the handling of a UDP reply to a discovery broadcast.
+     */
+    static Object beginDiscovery() {
+        return RECORDER.beginDiscovery();
+    }
+
+    /**
+     * @param mac the MAC address of the module found, or null if the packet was rejected
+     * @param reason why the packet was rejected
+     */
+    static void endDiscovery(Object event, InetAddress source, int length, String mac, String reason) {
+        RECORDER.endDiscovery(event, source, length, mac, reason);
+    }
+
+}
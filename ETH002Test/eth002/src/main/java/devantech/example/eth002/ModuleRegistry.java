@@ -0,0 +1,260 @@
+package devantech.example.eth002;
+
+import devantech.example.eth002.ETHScan.ScanResult;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the modules that have been found on the network, so they can be
+ * offered as soon as the application starts instead of after a discovery
+ * scan, and so they are still known where broadcast does not get through.
+ *
+ * Modules are keyed by MAC address. The file holds a header followed by one
+ * record per module: the MAC and IP address as raw bytes, the module id, when
+ * it was last seen and its host name.
+ */
+public class ModuleRegistry {
+
+    private static final int MAGIC = 0x45324d52;    // "E2MR"
+    private static final int VERSION = 1;
+    private static final int REVALIDATE_THREADS = 4;    // modules checked at the same time
+
+    /**
+     * A module that has been seen and when.
+     */
+    public static class Entry {
+
+        /**
+         * The details of the module
+         */
+        public final ScanResult result;
+
+        /**
+         * System.currentTimeMillis() when the module was last seen
+         */
+        public final long lastSeen;
+
+        Entry(ScanResult r, long t) {
+            result = r;
+            lastSeen = t;
+        }
+
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private String last = "";
+    private boolean dirty = false;
+
+    /**
+     * Constructor. Nothing is read until load is called.
+     * @param f the file to keep the registry in
+     */
+    public ModuleRegistry(File f) {
+        file = f;
+    }
+
+    /**
+     * Read the registry file. A missing file leaves the registry empty, as
+     * does one that can not be read, which is logged and replaced on the next
+     * save.
+     *
+     * @param scanner the scanner the loaded results belong to
+     * @param maxAge drop modules not seen for longer than this, 0 to keep all
+     * @param unit the unit of maxAge
+     */
+    public synchronized void load(ETHScan scanner, long maxAge, TimeUnit unit) {
+        entries.clear();
+        last = "";
+        if (!file.exists()) return;
+        long oldest = maxAge > 0 ? System.currentTimeMillis() - unit.toMillis(maxAge) : Long.MIN_VALUE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not a module registry: " + file);
+            }
+            int count = in.readInt();
+            String lastMac = in.readUTF().toUpperCase(Locale.ROOT);     // older files kept it in lower case
+            byte[] mac = new byte[6];
+            byte[] ip = new byte[4];
+            for (int index = 0; index < count; index++) {
+                in.readFully(mac);
+                in.readFully(ip);
+                int id = in.readUnsignedByte();
+                long seen = in.readLong();
+                String host = in.readUTF();
+                if (seen < oldest) {
+                    dirty = true;
+                    continue;
+                }
+                ScanResult r = scanner.new ScanResult(formatIp(ip), host, id, ModuleCodec.decodeMac(ByteBuffer.wrap(mac)));
+                entries.put(r.mac, new Entry(r, seen));
+            }
+            if (entries.containsKey(lastMac)) last = lastMac;
+        } catch (IOException ex) {
+            Logger.getLogger(ModuleRegistry.class.getName()).log(Level.SEVERE, null, ex);
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write the registry file if anything has changed since it was read. The
+     * file is replaced whole so a crash part way through leaves the old one.
+     *
+     * @throws IOException if the file can not be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            out.writeUTF(last);
+            for (Entry e : entries.values()) {
+                out.write(parseMac(e.result.mac));
+                out.write(parseIp(e.result.ip));
+                out.writeByte(e.result.id);
+                out.writeLong(e.lastSeen);
+                out.writeUTF(e.result.host_name);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    /**
+     * Record that a module has been seen now.
+     * @param r the module
+     */
+    public synchronized void seen(ScanResult r) {
+        try {
+            parseMac(r.mac);
+            parseIp(r.ip);
+        } catch (IllegalArgumentException ex) {
+            return;     // Can not be stored, and would not be found again.
+        }
+        entries.remove(r.mac);      // so iteration order stays oldest first
+        entries.put(r.mac, new Entry(r, System.currentTimeMillis()));
+        dirty = true;
+    }
+
+    /**
+     * Forget a module.
+     * @param mac its MAC address
+     */
+    public synchronized void forget(String mac) {
+        if (entries.remove(mac) != null) dirty = true;
+        if (last.equals(mac)) last = "";
+    }
+
+    /**
+     * @return the known modules, most recently seen first.
+     */
+    public synchronized List<Entry> entries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort((a, b) -> Long.compare(b.lastSeen, a.lastSeen));
+        return list;
+    }
+
+    /**
+     * Set the module that was last connected to.
+     * @param mac its MAC address
+     */
+    public synchronized void setLast(String mac) {
+        if (!last.equals(mac)) {
+            last = mac;
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return the module that was last connected to, or null if none is known.
+     */
+    public synchronized Entry getLast() {
+        return entries.get(last);
+    }
+
+    /**
+     * Check in the background which of the known modules are still answering
+     * at their last address. A few modules are tried at once so one that has
+     * gone away does not hold up the rest.
+     *
+     * @param port the TCP port the modules listen on
+     * @param timeout milliseconds to wait for each module
+     * @param reachable called, on the checking thread, for each module that answers
+     */
+    public void revalidate(int port, int timeout, Consumer<Entry> reachable) {
+        List<Entry> known = entries();
+        if (known.isEmpty()) return;
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(REVALIDATE_THREADS, known.size()), (r) -> {
+            Thread t = new Thread(r, "revalidate-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (Entry e : known) {
+            pool.execute(() -> {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(e.result.ip, port), timeout);
+                } catch (IOException ex) {
+                    return;
+                }
+                reachable.accept(e);
+            });
+        }
+        pool.shutdown();    // the threads end once every module has been tried
+    }
+
+    private static byte[] parseMac(String mac) {
+        String[] parts = mac.split(":");
+        if (parts.length != 6) throw new IllegalArgumentException("Bad MAC address: " + mac);
+        byte[] b = new byte[6];
+        for (int index = 0; index < 6; index++) {
+            b[index] = (byte) Integer.parseInt(parts[index], 16);
+        }
+        return b;
+    }
+
+    private static byte[] parseIp(String ip) {
+        String[] parts = ip.split("\\.");
+        if (parts.length != 4) throw new IllegalArgumentException("Bad IP address: " + ip);
+        byte[] b = new byte[4];
+        for (int index = 0; index < 4; index++) {
+            b[index] = (byte) Integer.parseInt(parts[index]);
+        }
+        return b;
+    }
+
+    private static String formatIp(byte[] ip) {
+        return (ip[0] & 0xff) + "." + (ip[1] & 0xff) + "." + (ip[2] & 0xff) + "." + (ip[3] & 0xff);
+    }
+
+}
@@ -0,0 +1,212 @@
+package devantech.example.eth002;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the polling of a set of modules. A module whose last good poll
+ * is older than the stall time is flagged as stalled, usually because its
+ * thread is stuck in a read that will never return. A module that goes round
+ * its poll loop faster than the runaway rate is flagged as spinning a core.
+ *
+ * When a module is flagged the stack trace of its poll thread is taken and
+ * passed to the listener, and a stalled module can have its connection closed
+ * so the stuck thread is freed. Modules serviced by a {@link FleetPoller} are
+ * watched the same way, but have no thread of their own to take a trace of.
+ */
+public class ModuleWatchdog {
+
+    public enum Condition {
+        HEALTHY,
+        STALLED,
+        RUNAWAY
+    }
+
+    /**
+     * Should be implemented by classes that want to know when a module's
+     * condition changes. Called on the watchdog thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param m the module
+         * @param c the new condition
+         * @param trace the stack of the module's poll thread when it was flagged,
+         * empty when it goes back to healthy or the module has no poll thread
+         */
+        void conditionChanged(Module m, Condition c, StackTraceElement[] trace);
+
+    }
+
+    /**
+     * What we know about one module.
+     */
+    private static class Watch {
+        final Module module;
+        long since;         // nanoTime when watching started
+        long lastLoops;
+        long lastCheck;
+        volatile double rate = 0;   // poll loops per second over the last check
+        volatile Condition condition = Condition.HEALTHY;
+
+        Watch(Module m, long now) {
+            module = m;
+            since = now;
+            lastLoops = m.LOOPS;
+            lastCheck = now;
+        }
+    }
+
+    private final Map<Module, Watch> watched = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final long stallNanos;
+    private final double runawayRate;
+    private volatile boolean recycleStalled = false;
+    private volatile Listener listener = null;
+
+    /**
+     * Constructor
+     * @param stall milliseconds without a good poll before a module is stalled
+     * @param runaway poll loops per second above which a module is runaway, 0 to not check
+     * @param period milliseconds between checks
+     */
+    public ModuleWatchdog(long stall, double runaway, long period) {
+        stallNanos = TimeUnit.MILLISECONDS.toNanos(stall);
+        runawayRate = runaway;
+        timer = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "module-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set whether stalled modules have their connections closed. The poll
+     * thread then ends and the error callback of the module is called.
+     * @param r true to close stalled connections
+     */
+    public void setRecycleStalled(boolean r) {
+        recycleStalled = r;
+    }
+
+    /**
+     * @param l the listener to tell about changes, or null for none
+     */
+    public void setListener(Listener l) {
+        listener = l;
+    }
+
+    /**
+     * Start watching a module.
+     * @param m the module
+     */
+    public void watch(Module m) {
+        watched.putIfAbsent(m, new Watch(m, System.nanoTime()));
+    }
+
+    /**
+     * Stop watching a module.
+     * @param m the module
+     */
+    public void unwatch(Module m) {
+        watched.remove(m);
+    }
+
+    /**
+     * @param m the module
+     * @return its condition at the last check, or null if it is not watched
+     */
+    public Condition getCondition(Module m) {
+        Watch w = watched.get(m);
+        return w == null ? null : w.condition;
+    }
+
+    /**
+     * @param m the module
+     * @return its poll loops per second at the last check, or 0 if it is not watched
+     */
+    public double getLoopRate(Module m) {
+        Watch w = watched.get(m);
+        return w == null ? 0 : w.rate;
+    }
+
+    /**
+     * Close a module's connection so its poll thread stops, whatever it is
+     * blocked on, and tell its error callback.
+     * @param m the module
+     */
+    public void recycle(Module m) {
+        Logger.getLogger(ModuleWatchdog.class.getName()).log(Level.WARNING, "Recycling connection to {0}", m.ipAddress);
+        m.abandon("Module stopped answering.");
+    }
+
+    /**
+     * Stop the watchdog.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        watched.clear();
+    }
+
+    /**
+     * Look at every module once.
+     */
+    private void check() {
+        long now = System.nanoTime();
+        for (Watch w : watched.values()) {
+            Module m = w.module;
+            if (!m.isConnected()) {
+                // Not polling yet, or finished. Nothing to judge.
+                w.since = now;
+                w.lastLoops = m.LOOPS;
+                w.lastCheck = now;
+                update(w, Condition.HEALTHY);
+                continue;
+            }
+
+            long loops = m.LOOPS;
+            w.rate = (loops - w.lastLoops) * 1e9 / Math.max(1, now - w.lastCheck);
+            w.lastLoops = loops;
+            w.lastCheck = now;
+
+            long lastGood = Math.max(m.UPDATED, w.since);
+            if (now - lastGood > stallNanos) {
+                if (update(w, Condition.STALLED) && recycleStalled) recycle(m);
+            } else if (runawayRate > 0 && w.rate > runawayRate) {
+                update(w, Condition.RUNAWAY);
+            } else {
+                update(w, Condition.HEALTHY);
+            }
+        }
+    }
+
+    /**
+     * Move a module to a new condition, reporting it if it changed.
+     * @return true if the condition changed.
+     */
+    private boolean update(Watch w, Condition c) {
+        if (w.condition == c) return false;
+        w.condition = c;
+        // A module polled by FleetPoller workers never starts its own thread.
+        boolean traced = c != Condition.HEALTHY && w.module.isAlive();
+        StackTraceElement[] trace = traced ? w.module.getStackTrace() : new StackTraceElement[0];
+        if (c != Condition.HEALTHY) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(w.module.ipAddress).append(' ').append(c).append(String.format(" (%.0f loops/s)", w.rate));
+            for (StackTraceElement e : trace) {
+                sb.append("\n\tat ").append(e);
+            }
+            Logger.getLogger(ModuleWatchdog.class.getName()).log(Level.WARNING, sb.toString());
+        }
+        Listener l = listener;
+        if (l != null) l.conditionChanged(w.module, c, trace);
+        return true;
+    }
+
+}
@@ -0,0 +1,350 @@
+package devantech.example.eth002;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives a Module from an MQTT broker instead of polling it over the TCP
+ * command port. The module publishes its state and we subscribe to it; relay
+ * commands made through the Module are published back to the broker.
+ *
+ * Topics are relative to a base topic configured on the module:
+ * <pre>
+ *   base/psu            supply voltage in volts, e.g. "12.4"
+ *   base/relayN         state of relay N, "1"/"0" or "ON"/"OFF"
+ *   base/relayN/set     published by us to change relay N, "ON" or "OFF"
+ * </pre>
+ *
+ * Only what is needed for this is implemented: MQTT 3.1.1, QoS 0, clean
+ * session, and optionally a user name and password.
+ */
+public class MqttLink extends Thread implements Module.CommandSink {
+
+    private static final int CONNECT = 0x10;
+    private static final int CONNACK = 0x20;
+    private static final int PUBLISH = 0x30;
+    private static final int SUBSCRIBE = 0x82;
+    private static final int SUBACK = 0x90;
+    private static final int PINGREQ = 0xC0;
+    private static final int PINGRESP = 0xD0;
+    private static final int DISCONNECT = 0xE0;
+
+    static final int KEEP_ALIVE = 30;  // seconds the broker allows between our packets, with some grace
+    private static final long PING_AFTER = KEEP_ALIVE * 1000000000L / 2;    // nanoseconds of our silence before a PINGREQ
+
+    public final String host;   // The broker address
+    public final int port;  // The broker port
+    public final String baseTopic;  // The topic the module publishes under
+
+    private final Module module;
+    private final String clientId;
+    private String user = null;
+    private String pass = null;
+
+    private Socket socket = null;
+    private OutputStream output = null;
+    private DataInputStream input = null;
+    private volatile boolean connected = false;
+    private int packetId = 0;
+    private long lastSent = 0;  // System.nanoTime() of our last packet, guarded by this
+
+    /**
+     * Constructor
+     * @param m the module to update from the broker
+     * @param h the broker host
+     * @param p the broker port, normally 1883
+     * @param base the base topic of the module
+     */
+    public MqttLink(Module m, String h, int p, String base) {
+        super("mqtt-" + base);
+        module = m;
+        host = h;
+        port = p;
+        baseTopic = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+        clientId = "eth002-" + Long.toHexString(System.nanoTime());
+        setDaemon(true);
+    }
+
+    /**
+     * Set the credentials to log in to the broker with.
+     * @param u the user name
+     * @param pw the password
+     */
+    public void setCredentials(String u, String pw) {
+        user = u;
+        pass = pw;
+    }
+
+    /**
+     * Connect to the broker, subscribe to the module topics and start
+     * receiving. Relay commands on the module are routed to the broker from
+     * this point on.
+     *
+     * @param timeout the connect timeout in milliseconds
+     * @throws IOException if the broker can not be reached or refuses us.
+     */
+    public void connect(int timeout) throws IOException {
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout);
+            output = socket.getOutputStream();
+            input = new DataInputStream(socket.getInputStream());
+            login();
+            socket.setSoTimeout(KEEP_ALIVE * 1000 / 4);
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+
+        connected = true;
+        module.setCommandSink(this);
+        start();
+    }
+
+    /**
+     * Send CONNECT and SUBSCRIBE and wait for the broker to accept both.
+     * Messages that arrive before the SUBACK are handled as usual.
+     */
+    private void login() throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        writeString(b, "MQTT");
+        b.write(4);     // protocol level 3.1.1
+        int flags = 0x02;   // clean session
+        if (user != null) flags |= 0x80;
+        if (pass != null) flags |= 0x40;
+        b.write(flags);
+        b.write(KEEP_ALIVE >> 8);
+        b.write(KEEP_ALIVE & 0xff);
+        writeString(b, clientId);
+        if (user != null) writeString(b, user);
+        if (pass != null) writeString(b, pass);
+        writePacket(CONNECT, b.toByteArray());
+
+        if (readHeader() != CONNACK) throw new IOException("Broker did not acknowledge connect.");
+        byte[] ack = readBody();
+        if (ack.length < 2 || ack[1] != 0) {
+            throw new IOException("Broker refused connection, code " + (ack.length < 2 ? -1 : ack[1]));
+        }
+
+        b.reset();
+        int id = nextPacketId();
+        b.write(id >> 8);
+        b.write(id & 0xff);
+        writeString(b, baseTopic + "/#");
+        b.write(0);     // QoS 0
+        writePacket(SUBSCRIBE, b.toByteArray());
+
+        for (;;) {
+            int type = readHeader();
+            byte[] body = readBody();
+            if ((type & 0xf0) == PUBLISH) {
+                received(type, body);
+                continue;
+            }
+            if (type != SUBACK || body.length < 3 || (((body[0] & 0xff) << 8) | (body[1] & 0xff)) != id) {
+                throw new IOException("Broker did not acknowledge subscribe.");
+            }
+            if ((body[2] & 0xff) == 0x80) throw new IOException("Broker refused subscription to " + baseTopic + "/#");
+            return;
+        }
+    }
+
+    /**
+     * Disconnect from the broker and give command routing back to the
+     * module's TCP connection.
+     */
+    public void close() {
+        module.setCommandSink(null);
+        boolean was = connected;
+        connected = false;
+        if (socket != null) {
+            try {
+                if (was) writePacket(DISCONNECT, new byte[0]);
+            } catch (IOException ex) {
+                // Going away anyway.
+            }
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Nothing to do here, the socket was already closed.
+            }
+        }
+    }
+
+    /**
+     * @return true while connected to the broker.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void run() {
+        while (connected) {
+            try {
+                // Ping on our own silence, not the broker's: it drops us if we send nothing.
+                synchronized (this) {
+                    if (System.nanoTime() - lastSent >= PING_AFTER) writePacket(PINGREQ, new byte[0]);
+                }
+                int type;
+                try {
+                    type = readHeader();
+                } catch (SocketTimeoutException ex) {
+                    continue;
+                }
+                byte[] body = readBody();
+                switch (type & 0xf0) {
+                    case PUBLISH:
+                        received(type, body);
+                        break;
+                    case SUBACK:
+                    case PINGRESP:
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException ex) {
+                if (connected) {
+                    Logger.getLogger(MqttLink.class.getName()).log(Level.SEVERE, null, ex);
+                    if (module.err != null) module.err.moduleError(module, "Lost connection to MQTT broker.");
+                }
+                close();
+            }
+        }
+    }
+
+    /**
+     * Publish an output command made on the module.
+     */
+    @Override
+    public void send(ByteBuffer command) {
+        String state;
+        switch (ModuleCodec.command(command)) {
+            case ModuleCodec.DIGITAL_OUTPUT_ACTIVE:
+                state = "ON";
+                break;
+            case ModuleCodec.DIGITAL_OUTPUT_INACTIVE:
+                state = "OFF";
+                break;
+            default:
+                return;
+        }
+        try {
+            publish(baseTopic + "/relay" + (command.get(command.position() + 1) & 0xff) + "/set", state);
+        } catch (IOException ex) {
+            Logger.getLogger(MqttLink.class.getName()).log(Level.SEVERE, null, ex);
+            if (module.err != null) module.err.moduleError(module, "Error publishing command to MQTT broker.");
+        }
+    }
+
+    /**
+     * Publish a message with QoS 0.
+     * @param topic the topic
+     * @param payload the message
+     * @throws IOException if the broker connection fails
+     */
+    public void publish(String topic, String payload) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        writeString(b, topic);
+        byte[] p = payload.getBytes(StandardCharsets.UTF_8);
+        b.write(p, 0, p.length);
+        writePacket(PUBLISH, b.toByteArray());
+    }
+
+    /**
+     * Handle a message published to one of our topics. Malformed messages are
+     * logged and ignored.
+     */
+    private void received(int header, byte[] body) {
+        if (body.length < 2) {
+            Logger.getLogger(MqttLink.class.getName()).log(Level.WARNING, "Malformed PUBLISH of {0} bytes", body.length);
+            return;
+        }
+        int topicLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+        int start = 2 + topicLength;
+        if ((header & 0x06) != 0) start += 2;   // packet identifier for QoS 1 and 2
+        if (start > body.length) {
+            Logger.getLogger(MqttLink.class.getName()).log(Level.WARNING, "Malformed PUBLISH of {0} bytes", body.length);
+            return;
+        }
+        String topic = new String(body, 2, topicLength, StandardCharsets.UTF_8);
+        String payload = new String(body, start, body.length - start, StandardCharsets.UTF_8).trim();
+
+        if (!topic.startsWith(baseTopic + "/")) return;
+        String leaf = topic.substring(baseTopic.length() + 1);
+
+        try {
+            if (leaf.equals("psu")) {
+                module.pushTelemetry(Math.round(Float.parseFloat(payload) * 10), -1);
+            } else if (leaf.startsWith("relay") && leaf.indexOf('/') < 0) {
+                int channel = Integer.parseInt(leaf.substring(5));
+                if (channel < 1 || channel > 8) return;
+                module.pushOutput(channel, payload.equals("1") || payload.equalsIgnoreCase("ON"));
+            }
+        } catch (NumberFormatException ex) {
+            Logger.getLogger(MqttLink.class.getName()).log(Level.WARNING, "Bad payload on {0}: {1}", new Object[]{topic, payload});
+        }
+    }
+
+    private synchronized void writePacket(int type, byte[] body) throws IOException {
+        byte[] packet = new byte[body.length + 5];
+        int n = 0;
+        packet[n++] = (byte) type;
+        int length = body.length;
+        do {
+            int digit = length & 0x7f;
+            length >>>= 7;
+            if (length > 0) digit |= 0x80;
+            packet[n++] = (byte) digit;
+        } while (length > 0);
+        System.arraycopy(body, 0, packet, n, body.length);
+        output.write(packet, 0, n + body.length);
+        output.flush();
+        lastSent = System.nanoTime();
+    }
+
+    private int readHeader() throws IOException {
+        int h = input.read();
+        if (h < 0) throw new EOFException("Broker closed the connection.");
+        return h;
+    }
+
+    private byte[] readBody() throws IOException {
+        int length = 0;
+        int shift = 0;
+        int digit;
+        do {
+            digit = input.readUnsignedByte();
+            length |= (digit & 0x7f) << shift;
+            shift += 7;
+        } while ((digit & 0x80) != 0 && shift < 28);
+        byte[] body = new byte[length];
+        input.readFully(body);
+        return body;
+    }
+
+    private int nextPacketId() {
+        packetId = (packetId % 0xffff) + 1;
+        return packetId;
+    }
+
+    private static void writeString(ByteArrayOutputStream b, String s) {
+        byte[] d = s.getBytes(StandardCharsets.UTF_8);
+        b.write(d.length >> 8);
+        b.write(d.length & 0xff);
+        b.write(d, 0, d.length);
+    }
+
+}
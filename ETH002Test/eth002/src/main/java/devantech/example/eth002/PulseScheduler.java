@@ -0,0 +1,555 @@
+package devantech.example.eth002;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules relay on and off actions on the client side, for pulses longer
+ * than the module can time itself and for actions that repeat.
+ *
+ * Pending actions are held in a hashed timing wheel with a 1 ms tick, so adding
+ * and cancelling an action take constant time however many are pending. When an
+ * action is due it is passed to the module's normal command path. Every change
+ * is appended to a journal file so the schedule survives a restart; the journal
+ * is compacted once it holds mostly dead records.
+ *
+ * Actions due at the same time fire in the order they were scheduled, and
+ * actions that fell due while the scheduler was stopped fire in the order of
+ * their times, so a missed pulse still ends with its off action.
+ */
+public class PulseScheduler {
+
+    private static final int WHEEL_BITS = 16;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;  // 65.5 seconds per turn at 1 ms a tick
+    private static final int MASK = WHEEL_SIZE - 1;
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    /**
+     * A scheduled action. Held in a doubly linked list hanging off a wheel
+     * slot. Everything but the wheel position is final, so the journal can be
+     * written from the actions without the lock.
+     */
+    private static class Action {
+        final long id;
+        final String mac;
+        final int channel;
+        final boolean active;
+        final long first;   // wall clock time of the first firing
+        final long period;  // 0 for a single firing
+        long deadline;      // wall clock time of the next firing
+        long rounds;        // wheel turns left before the action is due
+        int slot = -1;
+        Action prev;
+        Action next;
+
+        Action(long i, String m, int c, boolean a, long f, long p) {
+            id = i;
+            mac = m;
+            channel = c;
+            active = a;
+            first = f;
+            period = p;
+            deadline = f;
+        }
+    }
+
+    private final Action[] wheel = new Action[WHEEL_SIZE];     // the first action in each slot
+    private final Action[] tails = new Action[WHEEL_SIZE];     // the last action in each slot
+    private final Map<Long, Action> actions = new ConcurrentHashMap<>();  // changed holding the lock, read without it when compacting
+    private final Function<String, Module> lookup;
+    private final File journalFile;
+
+    private DataOutputStream journal = null;
+    private long journalRecords = 0;
+    private Thread compactor = null;    // set while the journal is being rewritten
+    private ByteArrayOutputStream held = null;  // records written while the journal is being rewritten
+    private long nextId = 1;
+
+    private long startNanos;
+    private long startMillis;
+    private long tick = 0;  // the next tick to be processed, nothing can be put in an earlier slot
+
+    private volatile boolean running = false;
+    private Thread worker = null;
+
+    /**
+     * Constructor
+     * @param l finds a connected module from its MAC address, may return null
+     * @param j the journal file, or null to keep the schedule in memory only
+     */
+    public PulseScheduler(Function<String, Module> l, File j) {
+        lookup = l;
+        journalFile = j;
+    }
+
+    /**
+     * Load any saved schedule and start firing actions. Single actions that
+     * fell due while we were stopped fire straight away; repeating actions
+     * carry on from their next time in the future.
+     *
+     * @throws IOException if the journal can not be read or written.
+     */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        startNanos = System.nanoTime();
+        startMillis = System.currentTimeMillis();
+        tick = 0;
+
+        if (journalFile != null) {
+            List<Action> saved = load();
+            actions.clear();
+            compact(saved);
+            for (Action a : saved) {
+                if (a.period > 0 && a.deadline < startMillis) {
+                    long missed = (startMillis - a.first + a.period - 1) / a.period;
+                    a.deadline = a.first + missed * a.period;
+                }
+            }
+            // Overdue actions share a slot and fire in the order they go in.
+            saved.sort(Comparator.comparingLong((Action a) -> a.deadline).thenComparingLong((a) -> a.id));
+            for (Action a : saved) {
+                actions.put(a.id, a);
+                insert(a);
+            }
+        }
+
+        running = true;
+        worker = new Thread(this::runWheel, "pulse-scheduler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop firing actions. The schedule is kept in the journal.
+     */
+    public void stop() {
+        Thread w;
+        synchronized (this) {
+            running = false;
+            w = worker;
+            worker = null;
+        }
+        if (w == null) return;
+        LockSupport.unpark(w);
+        try {
+            w.join();
+            Thread c;
+            synchronized (this) {
+                c = compactor;
+            }
+            if (c != null) c.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            closeJournal();
+            for (int index = 0; index < WHEEL_SIZE; index++) {
+                wheel[index] = null;
+                tails[index] = null;
+            }
+            actions.clear();
+        }
+    }
+
+    /**
+     * Schedule an output change.
+     *
+     * @param mac the MAC address of the module
+     * @param channel the output number, starting at 1
+     * @param active true to make the output active, false to make it inactive
+     * @param at the wall clock time in milliseconds to make the change
+     * @param period the time between repeats in milliseconds, 0 to not repeat
+     * @return an id that can be passed to cancel
+     * @throws IllegalStateException if the scheduler has not been started.
+     */
+    public synchronized long schedule(String mac, int channel, boolean active, long at, long period) {
+        if (!running) throw new IllegalStateException("Scheduler not started.");
+        if (period < 0) throw new IllegalArgumentException("period must not be negative");
+        Action a = new Action(nextId++, mac, channel, active, at, period);
+        actions.put(a.id, a);
+        insert(a);
+        writeAdd(a);
+        return a.id;
+    }
+
+    /**
+     * Schedule an output to be made active and then inactive again, optionally
+     * repeating. Unlike the pulse time on the module itself, the length is not
+     * limited.
+     *
+     * @param mac the MAC address of the module
+     * @param channel the output number, starting at 1
+     * @param at the wall clock time in milliseconds to make the output active
+     * @param length how long in milliseconds to keep it active
+     * @param period the time between repeats in milliseconds, 0 to not repeat
+     * @return the ids of the on and the off actions
+     */
+    public synchronized long[] pulse(String mac, int channel, long at, long length, long period) {
+        if (period > 0 && length >= period) throw new IllegalArgumentException("length must be shorter than period");
+        return new long[]{
+            schedule(mac, channel, true, at, period),
+            schedule(mac, channel, false, at + length, period)
+        };
+    }
+
+    /**
+     * Cancel a scheduled action.
+     *
+     * @param id the id returned when it was scheduled
+     * @return true if the action was pending.
+     */
+    public synchronized boolean cancel(long id) {
+        Action a = actions.remove(id);
+        if (a == null) return false;
+        unlink(a);
+        writeRemove(id);
+        return true;
+    }
+
+    /**
+     * @return the number of actions waiting to fire.
+     */
+    public synchronized int pending() {
+        return actions.size();
+    }
+
+    /**
+     * The worker thread. Sleeps until the next tick is due, then fires
+     * everything in the slots that have come round since the last wake up.
+     */
+    private void runWheel() {
+        List<Action> due = new ArrayList<>();
+        long lastFlush = System.nanoTime();
+
+        while (running) {
+            long now = System.nanoTime();
+            synchronized (this) {
+                long target = (now - startNanos) / TICK;
+                while (tick <= target) {
+                    expire((int) (tick++ & MASK), due);
+                }
+                if (now - lastFlush > TimeUnit.SECONDS.toNanos(1)) {
+                    flushJournal();
+                    lastFlush = now;
+                }
+            }
+
+            for (Action a : due) {
+                fire(a);
+            }
+            due.clear();
+
+            long wake = startNanos + tick * TICK;
+            long sleep = wake - System.nanoTime();
+            if (sleep > 0) LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    /**
+     * Take the actions that are due out of a slot. Repeating actions are put
+     * back in the wheel for their next time. Must be called holding the lock.
+     */
+    private void expire(int slot, List<Action> due) {
+        Action a = wheel[slot];
+        while (a != null) {
+            Action next = a.next;
+            if (a.rounds > 0) {
+                a.rounds--;
+            } else {
+                unlink(a);
+                due.add(a);
+                if (a.period > 0) {
+                    a.deadline += a.period;
+                    insert(a);
+                } else {
+                    actions.remove(a.id);
+                    writeRemove(a.id);
+                }
+            }
+            a = next;
+        }
+    }
+
+    /**
+     * Send an action to its module.
+     */
+    private void fire(Action a) {
+        Module m = lookup.apply(a.mac);
+        if (m == null) {
+            Logger.getLogger(PulseScheduler.class.getName()).log(Level.WARNING, "Module {0} not connected, action {1} skipped.", new Object[]{a.mac, a.id});
+            return;
+        }
+        if (a.active) {
+            m.digitalOutputActive(a.channel, 0, Module.Priority.AUTOMATION);
+        } else {
+            m.digitalOutputInactive(a.channel, 0, Module.Priority.AUTOMATION);
+        }
+    }
+
+    /**
+     * Put an action at the end of the slot for its deadline. Must be called
+     * holding the lock.
+     */
+    private void insert(Action a) {
+        long delay = Math.max(0, a.deadline - startMillis);
+        long due = Math.max(delay, tick);  // anything overdue goes in the next slot to be processed
+        long ticks = due - tick;
+        a.rounds = ticks >> WHEEL_BITS;
+        a.slot = (int) (due & MASK);
+        a.next = null;
+        a.prev = tails[a.slot];
+        if (a.prev != null) {
+            a.prev.next = a;
+        } else {
+            wheel[a.slot] = a;
+        }
+        tails[a.slot] = a;
+    }
+
+    /**
+     * Take an action out of the wheel. Must be called holding the lock.
+     */
+    private void unlink(Action a) {
+        if (a.slot < 0) return;
+        if (a.prev != null) {
+            a.prev.next = a.next;
+        } else {
+            wheel[a.slot] = a.next;
+        }
+        if (a.next != null) {
+            a.next.prev = a.prev;
+        } else {
+            tails[a.slot] = a.prev;
+        }
+        a.prev = null;
+        a.next = null;
+        a.slot = -1;
+    }
+
+    /**
+     * Read the journal and return the actions that are still live.
+     */
+    private List<Action> load() throws IOException {
+        Map<Long, Action> live = new HashMap<>();
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                for (;;) {
+                    byte type;
+                    try {
+                        type = in.readByte();
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                    try {
+                        if (type == RECORD_ADD) {
+                            long id = in.readLong();
+                            long first = in.readLong();
+                            long period = in.readLong();
+                            int channel = in.readUnsignedByte();
+                            boolean active = in.readBoolean();
+                            String mac = in.readUTF();
+                            live.put(id, new Action(id, mac, channel, active, first, period));
+                            nextId = Math.max(nextId, id + 1);
+                        } else if (type == RECORD_REMOVE) {
+                            live.remove(in.readLong());
+                        } else {
+                            break;
+                        }
+                    } catch (EOFException ex) {
+                        break;  // a record cut short by a crash, everything before it is good
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(live.values());
+    }
+
+    /**
+     * Rewrite the journal holding only the given actions and open it for
+     * appending.
+     */
+    private void compact(List<Action> live) throws IOException {
+        closeJournal();
+        File tmp = writeJournal(live);
+        replaceJournal(tmp);
+        journalRecords = live.size();
+    }
+
+    /**
+     * Write the given actions to a new journal beside the current one.
+     * @return the new file
+     */
+    private File writeJournal(Collection<Action> live) throws IOException {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Action a : live) {
+                writeAdd(out, a);
+            }
+        }
+        return tmp;
+    }
+
+    /**
+     * Put a new journal in place of the current one and open it for appending.
+     */
+    private void replaceJournal(File tmp) throws IOException {
+        Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true), 64 * 1024));
+    }
+
+    /**
+     * Start rewriting the journal on another thread, so the wheel keeps
+     * firing however many actions there are. Records written from now on are
+     * held in memory and added to the end of the new journal, so whichever
+     * changes the rewrite does or does not see, replaying the held records
+     * after it gives the live actions. Must be called holding the lock.
+     */
+    private void startCompaction() throws IOException {
+        journal.close();
+        held = new ByteArrayOutputStream();
+        journal = new DataOutputStream(held);
+        journalRecords = actions.size();
+        compactor = new Thread(() -> finishCompaction(actions.values()), "pulse-scheduler-compact");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Write the actions as they are now, then add the records held since and
+     * switch to the new journal. The held records are copied out without the
+     * lock until few are left, so the lock is only held for the last of them.
+     */
+    private void finishCompaction(Collection<Action> live) {
+        try {
+            File tmp = writeJournal(live);
+            FileOutputStream out = new FileOutputStream(tmp, true);
+            // Kept open so the old journal's space is freed when this is closed, not when it is replaced.
+            FileInputStream old = new FileInputStream(journalFile);
+            // Some file systems write out a file that replaces another as part of the rename, so do it first.
+            out.getFD().sync();
+            try {
+                for (;;) {
+                    ByteArrayOutputStream records;
+                    synchronized (this) {
+                        if (journal == null) return;    // failed or stopped meanwhile
+                        if (held.size() < 64 * 1024) {
+                            // Synced before the rename, or a crash could keep the new journal without these records.
+                            held.writeTo(out);
+                            out.getFD().sync();
+                            out.close();
+                            held = null;
+                            replaceJournal(tmp);
+                            return;
+                        }
+                        records = held;
+                        held = new ByteArrayOutputStream();
+                        journal = new DataOutputStream(held);
+                    }
+                    records.writeTo(out);
+                    out.getFD().sync();
+                }
+            } finally {
+                out.close();
+                old.close();
+            }
+        } catch (IOException ex) {
+            synchronized (this) {
+                journalFailed(ex);
+            }
+        } finally {
+            synchronized (this) {
+                held = null;
+                compactor = null;
+            }
+        }
+    }
+
+    private void writeAdd(Action a) {
+        if (journal == null) return;
+        try {
+            writeAdd(journal, a);
+            journalRecords++;
+        } catch (IOException ex) {
+            journalFailed(ex);
+        }
+    }
+
+    private void writeRemove(long id) {
+        if (journal == null) return;
+        try {
+            journal.writeByte(RECORD_REMOVE);
+            journal.writeLong(id);
+            journalRecords++;
+        } catch (IOException ex) {
+            journalFailed(ex);
+        }
+    }
+
+    private static void writeAdd(DataOutputStream out, Action a) throws IOException {
+        out.writeByte(RECORD_ADD);
+        out.writeLong(a.id);
+        out.writeLong(a.first);
+        out.writeLong(a.period);
+        out.writeByte(a.channel);
+        out.writeBoolean(a.active);
+        out.writeUTF(a.mac);
+    }
+
+    /**
+     * Push buffered journal records to disk, compacting the journal once
+     * most of it is dead. Must be called holding the lock.
+     */
+    private void flushJournal() {
+        if (journal == null) return;
+        try {
+            if (compactor == null && journalRecords > 4096 && journalRecords > actions.size() * 4L) {
+                startCompaction();
+            } else {
+                journal.flush();
+            }
+        } catch (IOException ex) {
+            journalFailed(ex);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            Logger.getLogger(PulseScheduler.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        journal = null;
+    }
+
+    private void journalFailed(IOException ex) {
+        Logger.getLogger(PulseScheduler.class.getName()).log(Level.SEVERE, "Schedule journal failed, continuing in memory only.", ex);
+        closeJournal();
+    }
+
+}
@@ -0,0 +1,378 @@
+package devantech.example.eth002;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs automation rules of the form "when a signal on one module crosses a
+ * threshold, switch relays on other modules". A rule fires when its condition
+ * becomes true, including when it is already true the first time the signal
+ * is seen, and its actions go to the modules' normal command path as
+ * automation commands.
+ *
+ * The rules on each signal of each module are compiled into arrays sorted by
+ * threshold. When a value changes from old to new, only the rules whose
+ * threshold lies between the two can have changed, and those are found by
+ * binary search, so the cost of a change depends on how many rules it flips
+ * and not on how many rules there are. A module whose values have not changed
+ * costs one map lookup and a few compares per telemetry pass.
+ */
+public class RuleEngine implements Module.TelemetryListener {
+
+    /**
+     * The values a rule can test.
+     */
+    public enum Signal {
+        PSU,        // supply voltage in tenths of a volt
+        RELAY_1,    // 1 when the relay is on, otherwise 0
+        RELAY_2,
+        RELAY_3,
+        RELAY_4,
+        RELAY_5,
+        RELAY_6,
+        RELAY_7,
+        RELAY_8
+    }
+
+    /**
+     * How a rule compares its signal with its threshold.
+     */
+    public enum Comparison {
+        BELOW,      // true while the value is less than the threshold
+        ABOVE,      // true while the value is greater than the threshold
+        EQUALS      // true while the value is the threshold
+    }
+
+    /**
+     * Switch one relay on one module.
+     */
+    public static class Action {
+
+        /**
+         * The MAC address of the module, as in Module.SERIAL
+         */
+        public final String mac;
+
+        /**
+         * The relay, starting at 1
+         */
+        public final int channel;
+
+        /**
+         * True to switch the relay on, false to switch it off
+         */
+        public final boolean active;
+
+        /**
+         * Constructor
+         * @param m the MAC address of the module
+         * @param c the relay, starting at 1
+         * @param a true to switch the relay on, false to switch it off
+         */
+        public Action(String m, int c, boolean a) {
+            mac = m;
+            channel = c;
+            active = a;
+        }
+
+    }
+
+    private static class Rule {
+        final long id;
+        final Watched module;
+        final Signal signal;
+        final Comparison comparison;
+        final int threshold;
+        final Action[] actions;
+
+        Rule(long i, Watched m, Signal s, Comparison c, int t, Action[] a) {
+            id = i;
+            module = m;
+            signal = s;
+            comparison = c;
+            threshold = t;
+            actions = a;
+        }
+    }
+
+    /**
+     * The rules on one signal of one module and the last value seen. Guarded
+     * by the Watched that holds it.
+     */
+    private static class Bucket {
+        final List<Rule> rules = new ArrayList<>();
+        boolean dirty = false;
+        boolean known = false;
+        int value;
+
+        // Compiled from rules when dirty: thresholds in ascending order with their rules.
+        int[] belowAt = new int[0];
+        Rule[] below = new Rule[0];
+        int[] aboveAt = new int[0];
+        Rule[] above = new Rule[0];
+        Map<Integer, List<Rule>> equals = new HashMap<>();
+
+        void compile() {
+            List<Rule> b = new ArrayList<>();
+            List<Rule> a = new ArrayList<>();
+            equals = new HashMap<>();
+            for (Rule r : rules) {
+                switch (r.comparison) {
+                    case BELOW:
+                        b.add(r);
+                        break;
+                    case ABOVE:
+                        a.add(r);
+                        break;
+                    default:
+                        equals.computeIfAbsent(r.threshold, (t) -> new ArrayList<>()).add(r);
+                }
+            }
+            below = sorted(b);
+            belowAt = thresholds(below);
+            above = sorted(a);
+            aboveAt = thresholds(above);
+            dirty = false;
+        }
+
+        /**
+         * Move to a new value and add the rules that have become true.
+         */
+        List<Rule> update(int v, List<Rule> fired) {
+            if (known && v == value) return fired;
+            if (dirty) compile();
+            if (!known) {
+                fired = add(fired, below, upperBound(belowAt, v), below.length);
+                fired = add(fired, above, 0, lowerBound(aboveAt, v));
+            } else if (v < value) {
+                fired = add(fired, below, upperBound(belowAt, v), upperBound(belowAt, value));
+            } else {
+                fired = add(fired, above, lowerBound(aboveAt, value), lowerBound(aboveAt, v));
+            }
+            List<Rule> at = equals.get(v);
+            if (at != null) {
+                if (fired == null) fired = new ArrayList<>();
+                fired.addAll(at);
+            }
+            value = v;
+            known = true;
+            return fired;
+        }
+
+        /**
+         * @return true if the rule holds for the last value seen
+         */
+        boolean holds(Rule r) {
+            if (!known) return false;
+            switch (r.comparison) {
+                case BELOW:
+                    return value < r.threshold;
+                case ABOVE:
+                    return value > r.threshold;
+                default:
+                    return value == r.threshold;
+            }
+        }
+
+        private static Rule[] sorted(List<Rule> list) {
+            Rule[] array = list.toArray(new Rule[0]);
+            Arrays.sort(array, (x, y) -> Integer.compare(x.threshold, y.threshold));
+            return array;
+        }
+
+        private static int[] thresholds(Rule[] rules) {
+            int[] t = new int[rules.length];
+            for (int index = 0; index < rules.length; index++) {
+                t[index] = rules[index].threshold;
+            }
+            return t;
+        }
+
+        private static List<Rule> add(List<Rule> fired, Rule[] rules, int from, int to) {
+            if (from >= to) return fired;
+            if (fired == null) fired = new ArrayList<>(to - from);
+            fired.addAll(Arrays.asList(rules).subList(from, to));
+            return fired;
+        }
+
+        /**
+         * @return the first index whose threshold is greater than v.
+         */
+        private static int upperBound(int[] t, int v) {
+            int lo = 0;
+            int hi = t.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (t[mid] <= v) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * @return the first index whose threshold is at least v.
+         */
+        private static int lowerBound(int[] t, int v) {
+            int lo = 0;
+            int hi = t.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (t[mid] < v) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * The rules that test one module, one bucket per signal.
+     */
+    private static class Watched {
+        final Bucket[] buckets = new Bucket[Signal.values().length];
+    }
+
+    private final Map<String, Watched> modules = new ConcurrentHashMap<>();
+    private final Map<Long, Rule> rules = new ConcurrentHashMap<>();
+    private final Function<String, Module> lookup;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicLong fired = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param l finds a connected module from its MAC address, may return null
+     */
+    public RuleEngine(Function<String, Module> l) {
+        lookup = l;
+    }
+
+    /**
+     * Start evaluating rules against a module's telemetry.
+     * @param m the module
+     */
+    public void watch(Module m) {
+        m.addTelemetryListener(this);
+        telemetryUpdated(m);
+    }
+
+    /**
+     * Stop evaluating rules against a module's telemetry.
+     * @param m the module
+     */
+    public void unwatch(Module m) {
+        m.removeTelemetryListener(this);
+    }
+
+    /**
+     * Add a rule. If the condition already holds for the last value seen the
+     * rule fires straight away.
+     *
+     * @param mac the MAC address of the module to test, as in Module.SERIAL
+     * @param s the signal to test
+     * @param c how to compare it
+     * @param threshold the value to compare with, in tenths of a volt for the PSU
+     * @param actions what to do when the condition becomes true
+     * @return the id of the rule, for removing it
+     */
+    public long addRule(String mac, Signal s, Comparison c, int threshold, Action... actions) {
+        Watched w = modules.computeIfAbsent(mac, (k) -> new Watched());
+        Rule r = new Rule(nextId.getAndIncrement(), w, s, c, threshold, actions.clone());
+        boolean holds;
+        synchronized (w) {
+            Bucket b = w.buckets[s.ordinal()];
+            if (b == null) b = w.buckets[s.ordinal()] = new Bucket();
+            b.rules.add(r);
+            b.dirty = true;
+            holds = b.holds(r);
+        }
+        rules.put(r.id, r);
+        if (holds) fire(r);
+        return r.id;
+    }
+
+    /**
+     * Remove a rule.
+     * @param id the id from addRule
+     * @return true if the rule was there
+     */
+    public boolean removeRule(long id) {
+        Rule r = rules.remove(id);
+        if (r == null) return false;
+        synchronized (r.module) {
+            Bucket b = r.module.buckets[r.signal.ordinal()];
+            b.rules.remove(r);
+            b.dirty = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of rules.
+     */
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * @return the number of times any rule has fired.
+     */
+    public long getFired() {
+        return fired.get();
+    }
+
+    @Override
+    public void telemetryUpdated(Module m) {
+        Watched w = modules.get(m.SERIAL);
+        if (w == null) return;
+        int psu = m.PSU;
+        int outputs = m.DIGITAL_OUTPUTS.data;
+
+        List<Rule> firing = null;
+        synchronized (w) {
+            Bucket b = w.buckets[Signal.PSU.ordinal()];
+            if (b != null) firing = b.update(psu, firing);
+            for (int channel = 1; channel < w.buckets.length; channel++) {
+                b = w.buckets[channel];
+                if (b != null) firing = b.update((outputs >> (channel - 1)) & 1, firing);
+            }
+        }
+        if (firing == null) return;
+        for (Rule r : firing) {
+            fire(r);
+        }
+    }
+
+    /**
+     * Queue a rule's actions on their modules. This only encodes commands into
+     * the modules' automation lanes, so it is safe on a poll thread.
+     */
+    private void fire(Rule r) {
+        fired.incrementAndGet();
+        for (Action a : r.actions) {
+            Module target = lookup.apply(a.mac);
+            if (target == null) {
+                Logger.getLogger(RuleEngine.class.getName()).log(Level.WARNING, "Rule {0}: no module {1}", new Object[]{r.id, a.mac});
+                continue;
+            }
+            if (a.active) {
+                target.digitalOutputActive(a.channel, 0, Module.Priority.AUTOMATION);
+            } else {
+                target.digitalOutputInactive(a.channel, 0, Module.Priority.AUTOMATION);
+            }
+        }
+    }
+
+}
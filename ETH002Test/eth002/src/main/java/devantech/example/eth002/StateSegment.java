@@ -0,0 +1,408 @@
+package devantech.example.eth002;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the latest state of a set of modules into a memory mapped file,
+ * so other processes on the same machine can read it without connecting to
+ * the modules themselves. One process polls the modules and every reader
+ * shares the results.
+ *
+ * The file is a 64 byte header followed by a fixed number of 128 byte slots,
+ * one per module, all little endian:
+ *
+ * <pre>
+ * header  0  int   magic "E2SS"
+ *         4  int   version
+ *         8  int   number of slots
+ *        12  int   slot size
+ *        16  int   slots in use, the highest slot written plus one
+ * slot    0  long  sequence, odd while the slot is being written
+ *         8  long  System.currentTimeMillis() of the last telemetry
+ *        16  long  System.currentTimeMillis() when the status last changed
+ *        24  int   supply voltage in tenths of a volt
+ *        28  int   relay states, bit 0 for relay 1
+ *        32  int   status, see FREE, CONNECTED and DISCONNECTED
+ *        36  int   module id
+ *        40  byte  length of the MAC address, followed by up to 23 ASCII bytes
+ *        64  byte  length of the IP address, followed by up to 63 ASCII bytes
+ * </pre>
+ *
+ * Each slot is guarded by a sequence lock. The writer makes the sequence odd,
+ * writes the slot and makes it even again; a reader copies the slot and keeps
+ * the copy only if the sequence was even and the same before and after. Readers
+ * never block the writer and never take a lock.
+ *
+ * The Java memory model says nothing about the order other processes see
+ * stores to mapped memory in. On HotSpot a store to a volatile field is a full
+ * fence, so both sides store to one around the slot data to keep the
+ * sequence and the data in order.
+ */
+public class StateSegment implements Module.TelemetryListener {
+
+    public static final int FREE = 0;           // the slot is not in use
+    public static final int CONNECTED = 1;      // the module is connected and being polled
+    public static final int DISCONNECTED = 2;   // the module was connected but is not now
+
+    static final int MAGIC = 0x45325353;    // "E2SS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 128;
+
+    private static final int H_MAGIC = 0, H_VERSION = 4, H_SLOTS = 8, H_SLOT_SIZE = 12, H_USED = 16;
+    private static final int S_SEQUENCE = 0, S_UPDATED = 8, S_CHANGED = 16, S_PSU = 24, S_OUTPUTS = 28, S_STATUS = 32, S_ID = 36;
+    private static final int S_MAC = 40, MAC_LENGTH = 23;
+    private static final int S_IP = 64, IP_LENGTH = 63;
+
+    private static volatile int barrier;
+
+    /**
+     * Keep the stores and loads before this call apart from those after it.
+     */
+    static void fence() {
+        barrier = 0;
+    }
+
+    /**
+     * The state of one module as copied out of a slot.
+     */
+    public static class State {
+
+        /**
+         * FREE, CONNECTED or DISCONNECTED
+         */
+        public int status;
+
+        /**
+         * The MAC address of the module
+         */
+        public String mac;
+
+        /**
+         * The IP address of the module
+         */
+        public String ip;
+
+        /**
+         * The module id
+         */
+        public int id;
+
+        /**
+         * The supply voltage in tenths of a volt
+         */
+        public int psu;
+
+        /**
+         * The relay states, bit 0 for relay 1
+         */
+        public int outputs;
+
+        /**
+         * System.currentTimeMillis() of the last telemetry, 0 if there has been none
+         */
+        public long updated;
+
+        /**
+         * System.currentTimeMillis() when the status last changed
+         */
+        public long changed;
+
+    }
+
+    /**
+     * Reads a segment written by another process.
+     */
+    public static class Reader {
+
+        static final int MAX_TRIES = 1000;      // attempts at a consistent copy before giving up on a slot
+
+        private final MappedByteBuffer map;
+        private final int slots;
+        private final byte[] text = new byte[IP_LENGTH];
+
+        /**
+         * Constructor
+         * @param f the file the writer created
+         * @throws IOException if the file can not be mapped or is not a segment
+         */
+        public Reader(File f) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(f, "r")) {
+                if (file.length() < HEADER_SIZE) throw new IOException("Not a module state segment: " + f);
+                map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            }
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.getInt(H_MAGIC) != MAGIC) throw new IOException("Not a module state segment: " + f);
+            if (map.getInt(H_VERSION) != VERSION) throw new IOException("Unsupported module state segment version " + map.getInt(H_VERSION));
+            if (map.getInt(H_SLOT_SIZE) != SLOT_SIZE) throw new IOException("Unexpected slot size " + map.getInt(H_SLOT_SIZE));
+            slots = map.getInt(H_SLOTS);
+            if (map.capacity() < HEADER_SIZE + (long) slots * SLOT_SIZE) throw new IOException("Module state segment is truncated: " + f);
+        }
+
+        /**
+         * @return the number of slots to look at, which only grows.
+         */
+        public int size() {
+            return Math.min(slots, map.getInt(H_USED));
+        }
+
+        /**
+         * Copy the state of the module in a slot. Gives up if the writer is
+         * always part way through writing it, which only happens if the
+         * writer died while doing so.
+         *
+         * @param slot the slot, from 0 to size() - 1
+         * @param into where to copy the state
+         * @return true if a consistent copy was made and the slot is in use
+         */
+        public boolean read(int slot, State into) {
+            int base = HEADER_SIZE + slot * SLOT_SIZE;
+            for (int tries = 0; tries < MAX_TRIES; tries++) {
+                long before = map.getLong(base + S_SEQUENCE);
+                if ((before & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                fence();
+                int status = map.getInt(base + S_STATUS);
+                long updated = map.getLong(base + S_UPDATED);
+                long changed = map.getLong(base + S_CHANGED);
+                int psu = map.getInt(base + S_PSU);
+                int outputs = map.getInt(base + S_OUTPUTS);
+                int id = map.getInt(base + S_ID);
+                String mac = getText(base + S_MAC, MAC_LENGTH);
+                String ip = getText(base + S_IP, IP_LENGTH);
+                fence();
+                if (map.getLong(base + S_SEQUENCE) != before) continue;
+
+                into.status = status;
+                into.updated = updated;
+                into.changed = changed;
+                into.psu = psu;
+                into.outputs = outputs;
+                into.id = id;
+                into.mac = mac;
+                into.ip = ip;
+                return status != FREE;
+            }
+            return false;
+        }
+
+        /**
+         * Read a length prefixed string. The length may be torn, so it is
+         * clamped; the copy is thrown away if it was.
+         */
+        private String getText(int offset, int max) {
+            int length = Math.min(map.get(offset) & 0xff, max);
+            for (int index = 0; index < length; index++) {
+                text[index] = map.get(offset + 1 + index);
+            }
+            return new String(text, 0, length, StandardCharsets.US_ASCII);
+        }
+
+    }
+
+    /**
+     * One slot of the file. There is one of these per index, kept for the
+     * life of the segment and handed to each module that uses the index in
+     * turn. Writes are made holding it and only after checking that the module
+     * still owns it, so a writer that looked the slot up before its module was
+     * removed can not write over the next module given the index.
+     */
+    private static class Slot {
+        final int index;
+        int status = FREE;
+
+        Slot(int i) {
+            index = i;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int slots;
+    private final Slot[] table;     // created as each index is first used, guarded by this
+    private final Map<Module, Slot> modules = new ConcurrentHashMap<>();
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();   // guarded by this
+    private int used = 0;   // guarded by this
+
+    /**
+     * Constructor. Creates the file, or empties it if it exists.
+     * @param f the file to publish into, normally on a RAM backed file system such as /dev/shm
+     * @param s the most modules that can be published at once
+     * @throws IOException if the file can not be created or mapped
+     */
+    public StateSegment(File f, int s) throws IOException {
+        slots = s;
+        table = new Slot[s];
+        file = new RandomAccessFile(f, "rw");
+        try {
+            long size = HEADER_SIZE + (long) s * SLOT_SIZE;
+            file.setLength(0);
+            file.setLength(size);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        map.putInt(H_VERSION, VERSION);
+        map.putInt(H_SLOTS, s);
+        map.putInt(H_SLOT_SIZE, SLOT_SIZE);
+        map.putInt(H_USED, 0);
+        fence();
+        map.putInt(H_MAGIC, MAGIC);
+    }
+
+    /**
+     * Start publishing a module's state. It is written now and again after
+     * each telemetry pass.
+     *
+     * @param m the module
+     * @return false if every slot is in use
+     */
+    public boolean add(Module m) {
+        Slot slot;
+        synchronized (this) {
+            if (modules.containsKey(m)) return true;
+            Integer index = free.poll();
+            if (index == null) {
+                if (used == slots) {
+                    Logger.getLogger(StateSegment.class.getName()).log(Level.WARNING, "No free slot for {0}", m.ipAddress);
+                    return false;
+                }
+                index = used++;
+            }
+            slot = table[index];
+            if (slot == null) slot = table[index] = new Slot(index);
+            modules.put(m, slot);
+        }
+        publish(m);
+        synchronized (this) {
+            if (slot.index >= map.getInt(H_USED)) {
+                fence();
+                map.putInt(H_USED, slot.index + 1);
+            }
+        }
+        m.addTelemetryListener(this);
+        return true;
+    }
+
+    /**
+     * Stop publishing a module's state and free its slot.
+     * @param m the module
+     */
+    public void remove(Module m) {
+        m.removeTelemetryListener(this);
+        Slot slot = modules.get(m);
+        if (slot == null) return;
+        synchronized (slot) {
+            if (!modules.remove(m, slot)) return;
+            writeStatus(slot, FREE);
+        }
+        // Only now can the index go to another module.
+        synchronized (this) {
+            free.add(slot.index);
+        }
+    }
+
+    /**
+     * Write a module's current state to its slot. Called after each telemetry
+     * pass; call it as well when a module connects or disconnects so readers
+     * see the change straight away.
+     *
+     * @param m the module
+     */
+    public void publish(Module m) {
+        Slot slot = modules.get(m);
+        if (slot == null) return;
+        int status = m.isConnected() ? CONNECTED : DISCONNECTED;
+        long updated = m.UPDATED;
+        long now = System.currentTimeMillis();
+        if (updated != 0) updated = now - (System.nanoTime() - updated) / 1000000;
+
+        synchronized (slot) {
+            if (modules.get(m) != slot) return;     // removed since we looked
+            int base = HEADER_SIZE + slot.index * SLOT_SIZE;
+            long sequence = map.getLong(base + S_SEQUENCE);
+            map.putLong(base + S_SEQUENCE, sequence + 1);
+            fence();
+            map.putLong(base + S_UPDATED, updated);
+            if (status != slot.status) {
+                map.putLong(base + S_CHANGED, now);
+                slot.status = status;
+            }
+            map.putInt(base + S_PSU, m.PSU);
+            map.putInt(base + S_OUTPUTS, m.DIGITAL_OUTPUTS.data & 0xff);
+            map.putInt(base + S_STATUS, status);
+            map.putInt(base + S_ID, m.ID);
+            putText(base + S_MAC, m.SERIAL, MAC_LENGTH);
+            putText(base + S_IP, m.ipAddress, IP_LENGTH);
+            fence();
+            map.putLong(base + S_SEQUENCE, sequence + 2);
+        }
+    }
+
+    @Override
+    public void telemetryUpdated(Module m) {
+        publish(m);
+    }
+
+    /**
+     * Stop publishing and close the file. Readers keep the last state
+     * written; every module is shown as disconnected.
+     */
+    public void close() {
+        for (Module m : modules.keySet()) {
+            m.removeTelemetryListener(this);
+            Slot slot = modules.get(m);
+            if (slot == null) continue;
+            synchronized (slot) {
+                if (modules.get(m) == slot) writeStatus(slot, DISCONNECTED);
+            }
+        }
+        modules.clear();
+        try {
+            file.close();
+        } catch (IOException ex) {
+            Logger.getLogger(StateSegment.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Change the status in a slot, leaving the rest of it as it was. Must be
+     * called holding the slot.
+     */
+    private void writeStatus(Slot slot, int status) {
+        int base = HEADER_SIZE + slot.index * SLOT_SIZE;
+        long sequence = map.getLong(base + S_SEQUENCE);
+        map.putLong(base + S_SEQUENCE, sequence + 1);
+        fence();
+        map.putLong(base + S_CHANGED, System.currentTimeMillis());
+        map.putInt(base + S_STATUS, status);
+        slot.status = status;
+        fence();
+        map.putLong(base + S_SEQUENCE, sequence + 2);
+    }
+
+    private void putText(int offset, String s, int max) {
+        int length = Math.min(s.length(), max);
+        map.put(offset, (byte) length);
+        for (int index = 0; index < length; index++) {
+            char c = s.charAt(index);
+            map.put(offset + 1 + index, c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+
+}
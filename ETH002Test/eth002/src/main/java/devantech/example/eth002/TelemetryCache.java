@@ -0,0 +1,189 @@
+package devantech.example.eth002;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read-through cache of module telemetry shared between any number of
+ * readers. Entries are keyed by the module's address and port, which are fixed
+ * when a Module is made and known however it is fed, so every Module for the
+ * same device shares one entry from the start. A reader states how old a value
+ * it is willing to accept; if the cached value is fresh enough it is returned
+ * straight away, otherwise the module is asked for new data. Readers that miss
+ * on the same module at the same time share a single request.
+ */
+public class TelemetryCache implements Module.TelemetryListener {
+
+    /**
+     * An immutable copy of the telemetry read from a module.
+     */
+    public static class Snapshot {
+
+        /**
+         * The cache key of the module, its address and port
+         */
+        public final String key;
+
+        /**
+         * The supply voltage in tenths of a volt
+         */
+        public final int psu;
+
+        /**
+         * The digital output states, one bit per relay
+         */
+        public final byte outputs;
+
+        /**
+         * System.nanoTime() when the values were read
+         */
+        public final long time;
+
+        Snapshot(String k, int p, byte o, long t) {
+            key = k;
+            psu = p;
+            outputs = o;
+            time = t;
+        }
+
+        /**
+         * @param unit the unit to return the age in
+         * @return how long ago the values were read
+         */
+        public long age(TimeUnit unit) {
+            return unit.convert(System.nanoTime() - time, TimeUnit.NANOSECONDS);
+        }
+
+    }
+
+    private final ConcurrentHashMap<String, Snapshot> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FutureTask<Snapshot>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Get the key a module is stored under. It does not change for the life
+     * of the module.
+     *
+     * @param m the module
+     * @return the cache key
+     */
+    static String key(Module m) {
+        return m.ipAddress + ":" + m.port;
+    }
+
+    /**
+     * Keep the cache filled from the module's own poll loop, so that readers
+     * asking for data no older than the poll period never cause extra traffic.
+     *
+     * @param m the module to follow
+     */
+    public void track(Module m) {
+        m.addTelemetryListener(this);
+        if (m.getTelemetry() != null) telemetryUpdated(m);
+    }
+
+    /**
+     * Stop following a module and forget its cached values.
+     *
+     * @param m the module to forget
+     */
+    public void untrack(Module m) {
+        m.removeTelemetryListener(this);
+        entries.remove(key(m));
+    }
+
+    @Override
+    public void telemetryUpdated(Module m) {
+        store(m);
+    }
+
+    /**
+     * Get the last cached value for a module without touching the device.
+     *
+     * @param m the module
+     * @return the cached snapshot or null if there is none.
+     */
+    public Snapshot peek(Module m) {
+        return entries.get(key(m));
+    }
+
+    /**
+     * Get the telemetry of a module that is no older than the given age.
+     *
+     * @param m the module to read
+     * @param maxAge the oldest data the caller will accept
+     * @param unit the unit of maxAge
+     * @return a snapshot no older than maxAge when it was returned, or for a
+     * module with no TCP connection, such as one fed over MQTT, the last values
+     * pushed to it.
+     * @throws IOException if the module had to be read and could not be.
+     */
+    public Snapshot read(Module m, long maxAge, TimeUnit unit) throws IOException {
+        String k = key(m);
+        long limit = unit.toNanos(maxAge);
+
+        Snapshot s = entries.get(k);
+        if (s != null && System.nanoTime() - s.time <= limit) {
+            return s;
+        }
+
+        FutureTask<Snapshot> task = new FutureTask<>(() -> load(m));
+        FutureTask<Snapshot> running = pending.putIfAbsent(k, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                pending.remove(k, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for module " + k, ex);
+        }
+    }
+
+    /**
+     * Remove all cached values.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Ask the module for new values. Runs on the thread of the first reader to
+     * miss; everyone else waiting on the same module gets this result.
+     */
+    private Snapshot load(Module m) throws IOException {
+        if (!m.isConnected()) {
+            // Nothing to ask, so the last values pushed to the module are the newest there are.
+            Snapshot s = store(m);
+            if (s != null) return s;
+            throw new IOException("Module " + key(m) + " is not connected.");
+        }
+        if (!m.refresh()) {
+            throw new IOException("Module " + key(m) + " is not connected.");
+        }
+        return store(m);
+    }
+
+    /**
+     * Cache the module's last telemetry pass. The snapshot is taken from the
+     * module as a whole, so its time always matches its values.
+     */
+    private Snapshot store(Module m) {
+        Snapshot s = m.getTelemetry();
+        if (s == null) return null;
+        return entries.merge(s.key, s, (old, n) -> n.time - old.time >= 0 ? n : old);
+    }
+
+}
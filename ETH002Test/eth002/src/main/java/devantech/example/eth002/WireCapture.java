@@ -0,0 +1,221 @@
+package devantech.example.eth002;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records every byte sent to and received from a module, with the time it
+ * went past, into a compact binary file. Attach one to a Module with
+ * {@link Module#setCapture(WireCapture)} before connecting. Captures are read
+ * back with {@link #read(File)} and played with {@link WireReplay}.
+ *
+ * File layout, all big endian:
+ * <pre>
+ *   int   magic "E2CP"
+ *   short version
+ *   long  wall clock time of the start in milliseconds
+ *   then for each record:
+ *     byte    direction, 1 sent to the module, 2 received from it
+ *     varlong nanoseconds since the previous record
+ *     varint  length
+ *     bytes   data
+ * </pre>
+ */
+public class WireCapture implements Closeable {
+
+    public static final byte SENT = 1;
+    public static final byte RECEIVED = 2;
+
+    private static final int MAGIC = 0x45324350;
+    private static final short VERSION = 1;
+
+    /**
+     * One chunk of data seen on the wire.
+     */
+    public static class Record {
+
+        /**
+         * SENT or RECEIVED
+         */
+        public final byte direction;
+
+        /**
+         * Nanoseconds since the start of the capture
+         */
+        public final long time;
+
+        /**
+         * The bytes
+         */
+        public final byte[] data;
+
+        Record(byte d, long t, byte[] b) {
+            direction = d;
+            time = t;
+            data = b;
+        }
+
+    }
+
+    private final DataOutputStream out;
+    private final long start;
+    private long last;
+    private boolean failed = false;
+
+    /**
+     * Start a new capture file.
+     * @param f the file to write, replaced if it exists
+     * @throws IOException if the file can not be created
+     */
+    public WireCapture(File f) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        start = System.nanoTime();
+        last = start;
+    }
+
+    /**
+     * Wrap the stream used to send to the module.
+     * @param o the socket output stream
+     * @return a stream that records what passes through it
+     */
+    public OutputStream tap(OutputStream o) {
+        return new FilterOutputStream(o) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                record(SENT, b, off, len);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                record(SENT, new byte[]{(byte) b}, 0, 1);
+            }
+        };
+    }
+
+    /**
+     * Wrap the stream used to receive from the module.
+     * @param i the socket input stream
+     * @return a stream that records what passes through it
+     */
+    public InputStream tap(InputStream i) {
+        return new FilterInputStream(i) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) record(RECEIVED, b, off, n);
+                return n;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int n = in.read();
+                if (n >= 0) record(RECEIVED, new byte[]{(byte) n}, 0, 1);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Add a record to the capture. A failure to write the capture is logged
+     * once and never disturbs the module connection.
+     */
+    synchronized void record(byte direction, byte[] b, int off, int len) {
+        if (failed) return;
+        long now = System.nanoTime();
+        try {
+            out.writeByte(direction);
+            writeVarLong(out, now - last);
+            writeVarLong(out, len);
+            out.write(b, off, len);
+            last = now;
+        } catch (IOException ex) {
+            failed = true;
+            Logger.getLogger(WireCapture.class.getName()).log(Level.SEVERE, "Capture stopped.", ex);
+        }
+    }
+
+    /**
+     * Push buffered records to the file.
+     * @throws IOException if the file can not be written
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        failed = true;
+        out.close();
+    }
+
+    /**
+     * Read a capture file.
+     * @param f the file
+     * @return the records in the order they were captured
+     * @throws IOException if the file can not be read or is not a capture
+     */
+    public static List<Record> read(File f) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC) throw new IOException(f + " is not a capture file.");
+            short version = in.readShort();
+            if (version != VERSION) throw new IOException("Unsupported capture version " + version);
+            in.readLong();
+
+            long time = 0;
+            for (;;) {
+                int direction = in.read();
+                if (direction < 0) break;
+                try {
+                    time += readVarLong(in);
+                    byte[] data = new byte[(int) readVarLong(in)];
+                    in.readFully(data);
+                    records.add(new Record((byte) direction, time, data));
+                } catch (EOFException ex) {
+                    break;  // the capture was cut off part way through a record
+                }
+            }
+        }
+        return records;
+    }
+
+    private static void writeVarLong(DataOutputStream o, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            o.writeByte((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        o.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Bad length in capture.");
+    }
+
+}
@@ -0,0 +1,208 @@
+package devantech.example.eth002;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a capture made with {@link WireCapture}, from either end of the
+ * connection.
+ *
+ * Played as the device, it listens for a Module to connect, checks that the
+ * Module sends what was captured and answers with the captured responses after
+ * the captured device delay. Played as the client, it connects to a device
+ * (real or stand in), sends the captured commands with the captured gaps
+ * between them and measures how long each response takes.
+ *
+ * Times are divided by the speed factor: 1 plays at the original speed, 10
+ * plays ten times faster, 0 plays as fast as possible.
+ */
+public class WireReplay {
+
+    /**
+     * The outcome of a replay.
+     */
+    public static class Result {
+
+        /**
+         * The number of records played
+         */
+        public final int records;
+
+        /**
+         * The number of records where the other end sent something different
+         * from the capture
+         */
+        public final int mismatches;
+
+        /**
+         * The time from sending each command to receiving all of its response
+         * in nanoseconds, sorted. Empty when played as the device.
+         */
+        public final long[] latencies;
+
+        /**
+         * How long the replay took in nanoseconds
+         */
+        public final long elapsed;
+
+        Result(int r, int m, long[] l, long e) {
+            records = r;
+            mismatches = m;
+            latencies = l;
+            elapsed = e;
+        }
+
+        /**
+         * @param p the percentile, 0 to 100
+         * @return the latency at that percentile in nanoseconds, or 0 if there are none
+         */
+        public long percentile(double p) {
+            if (latencies.length == 0) return 0;
+            int index = (int) Math.ceil(p / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d records, %d mismatches, %.1f ms, latency p50 %.3f ms p99 %.3f ms max %.3f ms",
+                    records, mismatches, elapsed / 1e6,
+                    percentile(50) / 1e6, percentile(99) / 1e6, percentile(100) / 1e6);
+        }
+
+    }
+
+    private final List<WireCapture.Record> records;
+    private final double speed;
+
+    /**
+     * Constructor
+     * @param r the captured records
+     * @param s the speed factor, 0 for as fast as possible
+     */
+    public WireReplay(List<WireCapture.Record> r, double s) {
+        if (s < 0) throw new IllegalArgumentException("speed must not be negative");
+        records = r;
+        speed = s;
+    }
+
+    /**
+     * Play the device end to one client.
+     *
+     * @param server a listening socket for the client to connect to
+     * @return the outcome once the capture has been played
+     * @throws IOException if the client goes away early
+     */
+    public Result serve(ServerSocket server) throws IOException {
+        try (Socket s = server.accept()) {
+            s.setTcpNoDelay(true);
+            return play(s, WireCapture.RECEIVED);
+        }
+    }
+
+    /**
+     * Play the client end against a device.
+     *
+     * @param host the device address
+     * @param port the device port
+     * @param timeout the connect and read timeout in milliseconds
+     * @return the outcome once the capture has been played
+     * @throws IOException if the device can not be reached or goes away early
+     */
+    public Result drive(String host, int port, int timeout) throws IOException {
+        try (Socket s = new Socket()) {
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(host, port), timeout);
+            s.setSoTimeout(timeout);
+            return play(s, WireCapture.SENT);
+        }
+    }
+
+    /**
+     * Walk the capture, writing the records in our direction and reading the
+     * others. Each write waits for the captured gap since the previous
+     * record, measured from when we actually finished that record.
+     */
+    private Result play(Socket s, byte ours) throws IOException {
+        InputStream in = s.getInputStream();
+        OutputStream out = s.getOutputStream();
+        long[] latencies = new long[records.size()];
+        int count = 0;
+        int mismatches = 0;
+        byte[] buf = new byte[256];
+
+        long begin = System.nanoTime();
+        long previousTime = records.isEmpty() ? 0 : records.get(0).time;
+        long previousDone = begin;
+        long sentAt = 0;
+
+        for (WireCapture.Record r : records) {
+            if (r.direction == ours) {
+                if (speed > 0) {
+                    long wake = previousDone + (long) ((r.time - previousTime) / speed);
+                    for (long wait = wake - System.nanoTime(); wait > 0; wait = wake - System.nanoTime()) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                out.write(r.data);
+                sentAt = System.nanoTime();
+            } else {
+                if (buf.length < r.data.length) buf = new byte[r.data.length];
+                int got = 0;
+                while (got < r.data.length) {
+                    int n = in.read(buf, got, r.data.length - got);
+                    if (n < 0) throw new EOFException("Connection closed with " + (r.data.length - got) + " bytes of a record left.");
+                    got += n;
+                }
+                if (!Arrays.equals(Arrays.copyOf(buf, got), r.data)) mismatches++;
+                if (ours == WireCapture.SENT && sentAt != 0) {
+                    latencies[count++] = System.nanoTime() - sentAt;
+                    sentAt = 0;
+                }
+            }
+            previousTime = r.time;
+            previousDone = System.nanoTime();
+        }
+
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return new Result(records.size(), mismatches, sorted, System.nanoTime() - begin);
+    }
+
+    /**
+     * Replay a capture file from the command line.
+     * <pre>
+     *   WireReplay capture.bin serve PORT [SPEED]
+     *   WireReplay capture.bin drive HOST PORT [SPEED]
+     * </pre>
+     * @param args the command line
+     * @throws IOException if the replay fails
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: WireReplay FILE serve PORT [SPEED] | WireReplay FILE drive HOST PORT [SPEED]");
+            return;
+        }
+        List<WireCapture.Record> r = WireCapture.read(new java.io.File(args[0]));
+        Result result;
+        if (args[1].equals("serve")) {
+            double s = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+            try (ServerSocket server = new ServerSocket(Integer.parseInt(args[2]))) {
+                result = new WireReplay(r, s).serve(server);
+            }
+        } else {
+            double s = args.length > 4 ? Double.parseDouble(args[4]) : 1;
+            result = new WireReplay(r, s).drive(args[2], Integer.parseInt(args[3]), (int) TimeUnit.SECONDS.toMillis(5));
+        }
+        System.out.println(result);
+    }
+
+}
@@ -0,0 +1,40 @@
+package devantech.example.eth002;
+
+import devantech.example.eth002.Module.Priority;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks how a shared Gateway hands out exchanges.
+ */
+public class CommandSchedulerTest {
+
+    @Test
+    public void operatorCommandsAreNeverHeldBack() {
+        CommandScheduler.Gateway g = new CommandScheduler.Gateway(10, 2);
+        CommandScheduler s = new CommandScheduler();
+        long now = System.nanoTime();
+        for (int n = 0; n < 100; n++) {
+            assertEquals(0, g.acquire(s, Priority.OPERATOR, now));
+        }
+    }
+
+    @Test
+    public void operatorDebtIsCappedAtOneBurst() {
+        CommandScheduler.Gateway g = new CommandScheduler.Gateway(10, 2);
+        CommandScheduler s = new CommandScheduler();
+        long now = System.nanoTime();
+        for (int n = 0; n < 1000; n++) {
+            g.acquire(s, Priority.OPERATOR, now);
+        }
+        // From two tokens in debt, the third at 10 per second is 300 ms away.
+        long wait = g.acquire(s, Priority.AUTOMATION, now);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(290), "wait " + wait);
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(300), "wait " + wait);
+        assertEquals(0, g.acquire(s, Priority.AUTOMATION, now + wait));
+    }
+
+}
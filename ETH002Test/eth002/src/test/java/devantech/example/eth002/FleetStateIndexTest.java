@@ -0,0 +1,73 @@
+package devantech.example.eth002;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the sets FleetStateIndex keeps, and that a removed module can not
+ * write over the module given its slot.
+ */
+public class FleetStateIndexTest {
+
+    private static final long RUN = 1000;    // milliseconds to keep swapping modules
+
+    @Test
+    public void queriesFollowTelemetry() {
+        FleetStateIndex index = new FleetStateIndex(100);
+        Module a = new Module("10.0.0.1", 17494, "");
+        Module b = new Module("10.0.0.2", 17494, "");
+        assertEquals(0, index.add(a));
+        assertEquals(1, index.add(b));
+        assertEquals(0, index.add(a));
+
+        a.pushTelemetry(120, 0x03);
+        b.pushTelemetry(120, 0x02);
+        assertEquals(1, index.count(1));
+        assertEquals(2, index.count(2));
+        assertEquals(1, FleetStateIndex.count(index.allOn(null, 1, 2)));
+        assertTrue(index.isSet(a, 1));
+        assertFalse(index.isSet(b, 1));
+
+        index.remove(a);
+        assertEquals(1, index.size());
+        assertEquals(0, index.count(1));
+        assertEquals(0, index.add(new Module("10.0.0.3", 17494, "")));
+        assertEquals(1, index.count(2));
+    }
+
+    @Test
+    public void lateTelemetryFromARemovedModuleIsDropped() throws InterruptedException {
+        FleetStateIndex index = new FleetStateIndex(1);
+        Module stale = new Module("10.0.0.1", 17494, "");
+        Module fresh = new Module("10.0.0.2", 17494, "");
+        stale.DIGITAL_OUTPUTS.data = (byte) 0xff;
+        index.add(stale);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            while (running.get()) {
+                index.telemetryUpdated(stale);
+            }
+        });
+        writer.start();
+        try {
+            long end = System.currentTimeMillis() + RUN;
+            for (int swap = 0; System.currentTimeMillis() < end; swap++) {
+                index.remove(stale);
+                index.add(fresh);
+                // A stale update that landed while fresh held the slot is still there.
+                assertEquals(0, index.count(1), "after swap " + swap);
+                index.remove(fresh);
+                index.add(stale);
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package devantech.example.eth002;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures telemetry throughput and latency of a Module talking to a stand in
+ * device through an {@link ImpairmentProxy}, for each of the built in link
+ * profiles, then the rate and acknowledgement latency of relay commands, and
+ * then the round trip of an ETHScan discovery through the UDP side of the
+ * proxy. Run with the number of seconds to spend on each profile.
+ */
+public class LinkBenchmark {
+
+    static final long SCAN_TIMEOUT = 1000;    // milliseconds before a discovery counts as lost
+
+    private static final ImpairmentProxy.Profile[] PROFILES = {
+        ImpairmentProxy.Profile.LAN, ImpairmentProxy.Profile.WAN, ImpairmentProxy.Profile.CELLULAR};
+
+    /**
+     * Run the benchmark.
+     * @param args optional seconds per profile, default 5
+     * @throws IOException if the stand in device can not be started
+     * @throws InterruptedException if interrupted while waiting for a discovery
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        StandInDevice device = new StandInDevice(0, "", new byte[]{0, 4, (byte) 0xa3, 0, 0, 1});
+        device.start();
+        int discoveryPort = device.startDiscovery(0);
+
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %8s %8s",
+                "profile", "polls/s", "p50 ms", "p99 ms", "max ms", "errors", "resets"));
+        for (ImpairmentProxy.Profile p : PROFILES) {
+            try (ImpairmentProxy proxy = new ImpairmentProxy(p, "127.0.0.1", device.getPort())) {
+                run(p, proxy, proxy.startTcp(0), TimeUnit.SECONDS.toNanos(seconds));
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %8s %8s",
+                "profile", "cmds/s", "p50 ms", "p99 ms", "max ms", "errors", "resets"));
+        for (ImpairmentProxy.Profile p : PROFILES) {
+            try (ImpairmentProxy proxy = new ImpairmentProxy(p, "127.0.0.1", device.getPort())) {
+                command(p, proxy, proxy.startTcp(0), TimeUnit.SECONDS.toNanos(seconds));
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %8s %8s",
+                "profile", "scans/s", "p50 ms", "p99 ms", "max ms", "lost", "dropped"));
+        for (ImpairmentProxy.Profile p : PROFILES) {
+            try (ImpairmentProxy proxy = new ImpairmentProxy(p, "127.0.0.1", discoveryPort)) {
+                scan(p, proxy, proxy.startUdp(0), TimeUnit.SECONDS.toNanos(seconds));
+            }
+        }
+        device.close();
+    }
+
+    /**
+     * Poll through the proxy for the given time, reconnecting whenever the
+     * link drops, and print one line of results.
+     */
+    private static void run(ImpairmentProxy.Profile p, ImpairmentProxy proxy, int port, long duration) {
+        long[] latencies = new long[1 << 16];
+        int count = 0;
+        int errors = 0;
+        long end = System.nanoTime() + duration;
+
+        Module m = null;
+        while (System.nanoTime() < end) {
+            if (m == null || !m.isConnected()) {
+                if (m != null) errors++;
+                m = new Module("127.0.0.1", port, "");
+                try {
+                    m.open(2000);
+                    m.handshake(2000);
+                } catch (IOException ex) {
+                    errors++;
+                    m = null;
+                    continue;
+                }
+            }
+            long start = System.nanoTime();
+            if (m.refresh()) {
+                if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+                latencies[count++] = System.nanoTime() - start;
+            }
+        }
+        if (m != null) m.close();
+
+        Arrays.sort(latencies, 0, count);
+        double secs = duration / 1e9;
+        System.out.println(String.format("%-10s %10.1f %10.3f %10.3f %10.3f %8d %8d",
+                p, count / secs, at(latencies, count, 0.50), at(latencies, count, 0.99), at(latencies, count, 1.0),
+                errors, proxy.getResets()));
+    }
+
+    /**
+     * Switch relays through the proxy one operator command at a time for the
+     * given time, reconnecting whenever the link drops, and print one line of
+     * results. Each command is timed from being queued to its acknowledgement,
+     * as the module's actuation latency is.
+     */
+    private static void command(ImpairmentProxy.Profile p, ImpairmentProxy proxy, int port, long duration) {
+        long[] latencies = new long[1 << 16];
+        int count = 0;
+        int errors = 0;
+        long end = System.nanoTime() + duration;
+
+        Module m = null;
+        while (System.nanoTime() < end) {
+            if (m == null || !m.isConnected()) {
+                if (m != null) errors++;
+                m = new Module("127.0.0.1", port, "");
+                try {
+                    m.open(2000);
+                    m.handshake(2000);
+                } catch (IOException ex) {
+                    errors++;
+                    m = null;
+                    continue;
+                }
+            }
+            long acked = m.getActuationLatency().count();
+            long start = System.nanoTime();
+            if ((count & 1) == 0) {
+                m.digitalOutputActive(1 + (count >> 1) % 2, 0);
+            } else {
+                m.digitalOutputInactive(1 + (count >> 1) % 2, 0);
+            }
+            // Operator commands come first, so one step sends this one.
+            m.service();
+            if (m.getActuationLatency().count() > acked) {
+                if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+                latencies[count++] = System.nanoTime() - start;
+            }
+        }
+        if (m != null) m.close();
+
+        Arrays.sort(latencies, 0, count);
+        double secs = duration / 1e9;
+        System.out.println(String.format("%-10s %10.1f %10.3f %10.3f %10.3f %8d %8d",
+                p, count / secs, at(latencies, count, 0.50), at(latencies, count, 0.99), at(latencies, count, 1.0),
+                errors, proxy.getResets()));
+    }
+
+    /**
+     * Scan the proxy for the stand in device one discovery at a time for the
+     * given time, and print one line of results. A discovery whose reply does
+     * not reach the delegates within SCAN_TIMEOUT is lost.
+     */
+    private static void scan(ImpairmentProxy.Profile p, ImpairmentProxy proxy, int port, long duration)
+            throws InterruptedException {
+        long[] latencies = new long[1 << 12];
+        int count = 0;
+        int lost = 0;
+        long end = System.nanoTime() + duration;
+
+        while (System.nanoTime() < end) {
+            BlockingQueue<Long> replies = new ArrayBlockingQueue<>(ETHScan.QUEUE_SIZE);
+            ETHScan scanner = new ETHScan();
+            scanner.setTarget("127.0.0.1", port, 0);
+            scanner.addDelegate((m) -> replies.offer(System.nanoTime()));
+            long start = System.nanoTime();
+            scanner.udpAction();
+            Long found = replies.poll(SCAN_TIMEOUT, TimeUnit.MILLISECONDS);
+            scanner.shutdown();
+            if (found == null) {
+                lost++;
+                continue;
+            }
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = found - start;
+        }
+
+        Arrays.sort(latencies, 0, count);
+        double secs = duration / 1e9;
+        System.out.println(String.format("%-10s %10.1f %10.3f %10.3f %10.3f %8d %8d",
+                p, count / secs, at(latencies, count, 0.50), at(latencies, count, 0.99), at(latencies, count, 1.0),
+                lost, proxy.getDropped()));
+    }
+
+    private static double at(long[] sorted, int count, double fraction) {
+        if (count == 0) return 0;
+        int index = Math.min(count - 1, Math.max(0, (int) Math.ceil(fraction * count) - 1));
+        return sorted[index] / 1e6;
+    }
+
+}
@@ -0,0 +1,95 @@
+package devantech.example.eth002;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the bytes ModuleCodec puts on the wire and how it reads responses.
+ */
+public class ModuleCodecTest {
+
+    private static byte[] written(ByteBuffer b) {
+        b.flip();
+        byte[] out = new byte[b.remaining()];
+        b.get(out);
+        return out;
+    }
+
+    @Test
+    public void responseLengths() {
+        assertEquals(3, ModuleCodec.responseLength(ModuleCodec.GET_MODULE_INFO));
+        assertEquals(6, ModuleCodec.responseLength(ModuleCodec.GET_SERIAL_NUMBER));
+        assertEquals(1, ModuleCodec.responseLength(ModuleCodec.GET_PSU));
+        assertEquals(1, ModuleCodec.responseLength(ModuleCodec.DIGITAL_OUTPUT_ACTIVE));
+        assertTrue(ModuleCodec.responseLength(ModuleCodec.GET_SERIAL_NUMBER) <= ModuleCodec.MAX_RESPONSE);
+    }
+
+    @Test
+    public void encodeBatchesCommands() {
+        ByteBuffer b = ByteBuffer.allocate(16);
+        int n = ModuleCodec.encode(b, ModuleCodec.GET_PSU);
+        n += ModuleCodec.encode(b, ModuleCodec.GET_DIGI_OUTPUT);
+        assertEquals(2, n);
+        assertArrayEquals(new byte[]{0x78, 0x24}, written(b));
+    }
+
+    @Test
+    public void encodeOutput() {
+        ByteBuffer b = ByteBuffer.allocate(16);
+        assertEquals(1, ModuleCodec.encodeOutput(b, true, 2, 0));
+        assertEquals(1, ModuleCodec.encodeOutput(b, false, 1, 250));
+        assertArrayEquals(new byte[]{0x20, 2, 0, 0x21, 1, (byte) 250}, written(b));
+    }
+
+    @Test
+    public void encodePasswordSendsOneBytePerCharacter() {
+        ByteBuffer b = ByteBuffer.allocate(16);
+        assertEquals(1, ModuleCodec.encodePassword(b, "pw\u00e9"));
+        assertArrayEquals(new byte[]{0x79, 'p', 'w', (byte) 0xe9}, written(b));
+    }
+
+    @Test
+    public void decodeByteIsUnsigned() {
+        ByteBuffer b = ByteBuffer.wrap(new byte[]{(byte) 0xff, 124});
+        assertEquals(255, ModuleCodec.decodeByte(b));
+        assertEquals(124, ModuleCodec.decodeByte(b));
+        assertEquals(0, b.remaining());
+    }
+
+    @Test
+    public void decodeMac() {
+        ByteBuffer b = ByteBuffer.wrap(new byte[]{0, 4, (byte) 0xa3, 0x1f, (byte) 0xf0, 1, 9});
+        assertEquals("00:04:A3:1F:F0:01", ModuleCodec.decodeMac(b));
+        assertEquals(1, b.remaining());
+    }
+
+    @Test
+    public void completeWaitsForTheWholeResponse() {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.put(new byte[5]).flip();
+        assertFalse(ModuleCodec.complete(b, ModuleCodec.GET_SERIAL_NUMBER));
+        assertTrue(ModuleCodec.complete(b, ModuleCodec.GET_MODULE_INFO));
+        b.clear();
+        b.put(new byte[6]).flip();
+        assertTrue(ModuleCodec.complete(b, ModuleCodec.GET_SERIAL_NUMBER));
+    }
+
+    @Test
+    public void commandDoesNotMoveTheBuffer() {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        ModuleCodec.encodeOutput(b, false, 3, 0);
+        ModuleCodec.encode(b, ModuleCodec.GET_PSU);
+        b.flip();
+        assertEquals(ModuleCodec.DIGITAL_OUTPUT_INACTIVE, ModuleCodec.command(b));
+        assertEquals(0, b.position());
+        b.position(3);
+        assertEquals(ModuleCodec.GET_PSU, ModuleCodec.command(b));
+        assertEquals(3, b.position());
+    }
+
+}
@@ -0,0 +1,101 @@
+package devantech.example.eth002;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs MqttLink against a StandInBroker on a local port.
+ */
+public class MqttLinkTest {
+
+    private static final long WAIT = 5000;  // milliseconds to wait for a message to go round
+
+    private StandInBroker broker;
+    private Module module;
+    private MqttLink link;
+    private final List<String> published = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    public void connect() throws IOException {
+        broker = new StandInBroker(0);
+        broker.setListener((topic, payload) -> published.add(topic + " " + payload));
+        broker.start();
+        module = new Module("10.0.0.1", 17494, "");
+        link = new MqttLink(module, "127.0.0.1", broker.getPort(), "site/eth/");
+        link.connect(2000);
+    }
+
+    @AfterEach
+    public void close() {
+        link.close();
+        broker.close();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + WAIT;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean(), "timed out");
+    }
+
+    private int outputs() {
+        TelemetryCache.Snapshot s = module.getTelemetry();
+        return s == null ? -1 : s.outputs & 0xff;
+    }
+
+    @Test
+    public void publishedStateUpdatesTheModule() throws InterruptedException {
+        broker.publish("site/eth/psu", "12.4");
+        broker.publish("site/eth/relay1", "ON");
+        broker.publish("site/eth/relay3", "1");
+        broker.publish("site/eth/relay8", "on");
+        broker.publish("site/eth/relay1", "OFF");
+        await(() -> outputs() == 0x84);
+        assertEquals(124, module.getTelemetry().psu);
+        assertEquals(124, module.PSU);
+        assertEquals((byte) 0x84, module.DIGITAL_OUTPUTS.data);
+    }
+
+    @Test
+    public void badMessagesAreSkipped() throws InterruptedException {
+        broker.publishRaw(new byte[]{0});
+        broker.publishRaw(new byte[]{0, 50, 'x'});
+        broker.publish("site/eth/psu", "twelve");
+        broker.publish("site/eth/relay9", "ON");
+        broker.publish("site/eth/relay2", "ON");
+        await(() -> outputs() == 0x02);
+        assertTrue(link.isConnected());
+    }
+
+    @Test
+    public void commandsArePublished() throws InterruptedException {
+        module.digitalOutputActive(2, 0);
+        module.digitalOutputInactive(5, 0, Module.Priority.AUTOMATION);
+        await(() -> published.size() == 2);
+        assertEquals("site/eth/relay2/set ON", published.get(0));
+        assertEquals("site/eth/relay5/set OFF", published.get(1));
+    }
+
+    @Test
+    public void closeDisconnectsAndStopsPublishing() throws InterruptedException {
+        await(() -> broker.getClients() == 1);
+        link.close();
+        assertFalse(link.isConnected());
+        await(() -> broker.getClients() == 0);
+        module.digitalOutputActive(1, 0);
+        Thread.sleep(100);
+        assertTrue(published.isEmpty());
+    }
+
+}
@@ -0,0 +1,125 @@
+package devantech.example.eth002;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the order PulseScheduler fires actions in and that the journal
+ * brings the schedule back after a restart. Actions are scheduled in the past,
+ * far in the future, or with seconds to spare before they fall due, so the
+ * outcome does not depend on how quickly the test runs.
+ */
+public class PulseSchedulerTest {
+
+    private static final long WAIT = 5000;  // milliseconds to wait for actions that are already due
+    private static final long STOP_MARGIN = 2000;   // milliseconds between scheduling and the first action when stopping in between
+
+    @TempDir
+    File dir;
+
+    private final List<String> fired = Collections.synchronizedList(new ArrayList<>());
+    private final Module module = new Module("10.0.0.1", 17494, "");
+    private PulseScheduler scheduler;
+
+    private PulseScheduler scheduler() {
+        module.setCommandSink((b) -> fired.add((ModuleCodec.command(b) == ModuleCodec.DIGITAL_OUTPUT_ACTIVE ? "on " : "off ")
+                + (b.get(b.position() + 1) & 0xff)));
+        scheduler = new PulseScheduler((mac) -> module, new File(dir, "pulses.journal"));
+        return scheduler;
+    }
+
+    @AfterEach
+    public void stop() {
+        if (scheduler != null) scheduler.stop();
+    }
+
+    /**
+     * Wait until n actions have fired and return them.
+     */
+    private List<String> await(int n) throws InterruptedException {
+        long end = System.currentTimeMillis() + WAIT;
+        while (fired.size() < n && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        synchronized (fired) {
+            return new ArrayList<>(fired);
+        }
+    }
+
+    @Test
+    public void overdueActionsFireInTheOrderTheyWereScheduled() throws Exception {
+        PulseScheduler s = scheduler();
+        s.start();
+        long past = System.currentTimeMillis() - 600000;
+        for (int channel = 1; channel <= 3; channel++) {
+            s.pulse("mac", channel, past, 300000, 0);
+        }
+        assertEquals(Arrays.asList("on 1", "off 1", "on 2", "off 2", "on 3", "off 3"), await(6));
+        assertEquals(0, s.pending());
+    }
+
+    @Test
+    public void actionsMissedWhileStoppedFireInTimeOrder() throws Exception {
+        PulseScheduler s = scheduler();
+        s.start();
+        // Far enough out that stop always lands first, however slow the machine.
+        long at = System.currentTimeMillis() + STOP_MARGIN;
+        for (int channel = 3; channel >= 1; channel--) {
+            s.pulse("mac", channel, at + channel, 100, 0);
+        }
+        s.stop();
+        while (System.currentTimeMillis() <= at + 100 + 3) {
+            Thread.sleep(10);
+        }
+        assertTrue(fired.isEmpty());
+
+        s.start();
+        assertEquals(Arrays.asList("on 1", "on 2", "on 3", "off 1", "off 2", "off 3"), await(6));
+    }
+
+    @Test
+    public void journalKeepsPendingActionsAcrossARestart() throws Exception {
+        PulseScheduler s = scheduler();
+        s.start();
+        long future = System.currentTimeMillis() + 3600000;
+        long[] ids = new long[100];
+        for (int index = 0; index < ids.length; index++) {
+            ids[index] = s.schedule("mac", 1 + index % 2, true, future + index, 0);
+        }
+        for (int index = 0; index < ids.length; index += 2) {
+            assertTrue(s.cancel(ids[index]));
+        }
+        assertFalse(s.cancel(ids[0]));
+        s.stop();
+
+        s.start();
+        assertEquals(50, s.pending());
+        assertTrue(s.cancel(ids[1]));
+        assertFalse(s.cancel(ids[2]));
+        s.stop();
+
+        s.start();
+        assertEquals(49, s.pending());
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    public void repeatingActionsAreKeptAfterFiring() throws Exception {
+        PulseScheduler s = scheduler();
+        s.start();
+        s.schedule("mac", 4, true, System.currentTimeMillis() - 1000, 3600000);
+        assertEquals(Collections.singletonList("on 4"), await(1));
+        assertEquals(1, s.pending());
+    }
+
+}
@@ -0,0 +1,149 @@
+package devantech.example.eth002;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks RuleEngine against a brute force evaluation of every rule on every
+ * telemetry update.
+ */
+public class RuleEngineTest {
+
+    private static final int MODULES = 200;
+    private static final int RULES_PER_MODULE = 50;
+    private static final int UPDATES = 20000;
+
+    /**
+     * A rule as the brute force check sees it.
+     */
+    private static class Spec {
+        final int module;
+        final RuleEngine.Signal signal;
+        final RuleEngine.Comparison comparison;
+        final int threshold;
+        final int target;
+        boolean held = false;
+
+        Spec(int m, RuleEngine.Signal s, RuleEngine.Comparison c, int t, int g) {
+            module = m;
+            signal = s;
+            comparison = c;
+            threshold = t;
+            target = g;
+        }
+
+        boolean holds(int psu, int outputs) {
+            int v = signal == RuleEngine.Signal.PSU ? psu : (outputs >> (signal.ordinal() - 1)) & 1;
+            switch (comparison) {
+                case BELOW:
+                    return v < threshold;
+                case ABOVE:
+                    return v > threshold;
+                default:
+                    return v == threshold;
+            }
+        }
+    }
+
+    private final Module[] modules = new Module[MODULES];
+    private final Map<String, Module> byMac = new HashMap<>();
+    private final int[] sent = new int[MODULES];
+
+    private RuleEngine engine() {
+        for (int index = 0; index < MODULES; index++) {
+            int i = index;
+            modules[index] = new Module("10.0.0." + index, 17494, "");
+            modules[index].SERIAL = "mac" + index;
+            modules[index].setCommandSink((b) -> sent[i]++);
+            byMac.put(modules[index].SERIAL, modules[index]);
+        }
+        return new RuleEngine(byMac::get);
+    }
+
+    @Test
+    public void firesExactlyWhenBruteForceSaysARuleBecameTrue() {
+        RuleEngine engine = engine();
+        Random random = new Random(1);
+        List<Spec> specs = new ArrayList<>();
+        for (int m = 0; m < MODULES; m++) {
+            for (int r = 0; r < RULES_PER_MODULE; r++) {
+                RuleEngine.Signal s = random.nextInt(3) == 0
+                        ? RuleEngine.Signal.values()[1 + random.nextInt(2)] : RuleEngine.Signal.PSU;
+                RuleEngine.Comparison c = RuleEngine.Comparison.values()[random.nextInt(3)];
+                int threshold = s == RuleEngine.Signal.PSU ? 100 + random.nextInt(50) : random.nextInt(2);
+                Spec spec = new Spec(m, s, c, threshold, random.nextInt(MODULES));
+                specs.add(spec);
+                engine.addRule("mac" + m, s, c, threshold, new RuleEngine.Action("mac" + spec.target, 1, true));
+            }
+        }
+        assertEquals(MODULES * RULES_PER_MODULE, engine.size());
+        assertEquals(0, engine.getFired(), "nothing fires before a module is seen");
+
+        int[] expected = new int[MODULES];
+        long fired = 0;
+        for (Module m : modules) {
+            engine.watch(m);
+        }
+        for (Spec spec : specs) {
+            spec.held = spec.holds(0, 0);
+            if (spec.held) {
+                fired++;
+                expected[spec.target]++;
+            }
+        }
+        assertEquals(fired, engine.getFired(), "rules true on first sight");
+
+        for (int update = 0; update < UPDATES; update++) {
+            int m = random.nextInt(MODULES);
+            int psu = 100 + random.nextInt(50);
+            int outputs = random.nextInt(4);
+            modules[m].pushTelemetry(psu, outputs);
+            for (Spec spec : specs.subList(m * RULES_PER_MODULE, (m + 1) * RULES_PER_MODULE)) {
+                boolean holds = spec.holds(psu, outputs);
+                if (holds && !spec.held) {
+                    fired++;
+                    expected[spec.target]++;
+                }
+                spec.held = holds;
+            }
+        }
+        assertEquals(fired, engine.getFired());
+        for (int index = 0; index < MODULES; index++) {
+            assertEquals(expected[index], sent[index], "commands sent to module " + index);
+        }
+    }
+
+    @Test
+    public void addingARuleThatHoldsFiresStraightAway() {
+        RuleEngine engine = engine();
+        engine.addRule("mac0", RuleEngine.Signal.PSU, RuleEngine.Comparison.ABOVE, 200, new RuleEngine.Action("mac1", 1, true));
+        engine.watch(modules[0]);
+        modules[0].pushTelemetry(120, 0);
+        assertEquals(0, engine.getFired());
+        engine.addRule("mac0", RuleEngine.Signal.PSU, RuleEngine.Comparison.BELOW, 130, new RuleEngine.Action("mac1", 2, true));
+        assertEquals(1, engine.getFired());
+        assertEquals(1, sent[1]);
+    }
+
+    @Test
+    public void removedRulesStopFiring() {
+        RuleEngine engine = engine();
+        engine.watch(modules[0]);
+        long id = engine.addRule("mac0", RuleEngine.Signal.RELAY_1, RuleEngine.Comparison.EQUALS, 1, new RuleEngine.Action("mac1", 1, false));
+        assertTrue(engine.removeRule(id));
+        assertFalse(engine.removeRule(id));
+        assertEquals(0, engine.size());
+        modules[0].pushTelemetry(120, 1);
+        assertEquals(0, engine.getFired());
+        assertEquals(0, sent[1]);
+    }
+
+}
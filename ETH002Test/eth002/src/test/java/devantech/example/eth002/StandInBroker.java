@@ -0,0 +1,283 @@
+package devantech.example.eth002;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A software stand in for an MQTT broker, for trying {@link MqttLink} without
+ * a real broker or module. It speaks as much of MQTT 3.1.1 as MqttLink uses:
+ * QoS 0 publishes, subscriptions to exact topics or to a prefix ending in
+ * "/#", pings and disconnects. Like a real broker it drops a client that sends
+ * nothing for one and a half times its keep alive.
+ *
+ * Messages published by clients are passed on to the other subscribers and to
+ * the listener, and publish sends a message as if a module had published it.
+ */
+public class StandInBroker extends Thread {
+
+    /**
+     * Should be implemented by classes that want to see what clients publish.
+     */
+    public interface Listener {
+        void published(String topic, String payload);
+    }
+
+    /**
+     * A connected client and what it has subscribed to.
+     */
+    private static class Client {
+        final Socket socket;
+        final OutputStream output;
+        final List<String> filters = new CopyOnWriteArrayList<>();
+
+        Client(Socket s) throws IOException {
+            socket = s;
+            output = s.getOutputStream();
+        }
+
+        boolean matches(String topic) {
+            for (String f : filters) {
+                if (f.equals(topic)) return true;
+                if (f.endsWith("/#") && topic.startsWith(f.substring(0, f.length() - 1))) return true;
+            }
+            return false;
+        }
+
+        synchronized void send(int type, byte[] body) throws IOException {
+            ByteArrayOutputStream b = new ByteArrayOutputStream(body.length + 5);
+            b.write(type);
+            int length = body.length;
+            do {
+                int digit = length & 0x7f;
+                length >>>= 7;
+                if (length > 0) digit |= 0x80;
+                b.write(digit);
+            } while (length > 0);
+            b.write(body, 0, body.length);
+            b.writeTo(output);
+            output.flush();
+        }
+    }
+
+    private final ServerSocket server;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final AtomicLong pings = new AtomicLong();
+    private volatile Listener listener = null;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     * @param p the port to listen on, 0 for any free port
+     * @throws IOException if the port can not be opened
+     */
+    public StandInBroker(int p) throws IOException {
+        super("stand-in-broker");
+        server = new ServerSocket(p);
+        setDaemon(true);
+    }
+
+    /**
+     * @return the port the broker is listening on.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @param l the listener to tell about published messages, or null for none
+     */
+    public void setListener(Listener l) {
+        listener = l;
+    }
+
+    /**
+     * @return the number of PINGREQ packets received from all clients.
+     */
+    public long getPings() {
+        return pings.get();
+    }
+
+    /**
+     * @return the number of clients connected.
+     */
+    public int getClients() {
+        return clients.size();
+    }
+
+    /**
+     * Send a message to every client subscribed to its topic, as if a module
+     * had published it.
+     * @param topic the topic
+     * @param payload the message
+     */
+    public void publish(String topic, String payload) {
+        forward(null, topic, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send a PUBLISH packet with any body to every client, for checking that
+     * clients survive malformed packets.
+     * @param body the packet body
+     */
+    void publishRaw(byte[] body) {
+        for (Client c : clients) {
+            try {
+                c.send(0x30, body);
+            } catch (IOException ex) {
+                drop(c);
+            }
+        }
+    }
+
+    /**
+     * Stop listening and drop all clients.
+     */
+    public void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException ex) {
+            // Already closed.
+        }
+        for (Client c : clients) {
+            drop(c);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                Thread t = new Thread(() -> serve(s), "stand-in-broker-client");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ex) {
+                if (running) Logger.getLogger(StandInBroker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Handle packets from one client until it disconnects or goes quiet.
+     */
+    private void serve(Socket s) {
+        Client c = null;
+        try {
+            c = new Client(s);
+            DataInputStream input = new DataInputStream(s.getInputStream());
+            if (input.read() != 0x10) return;
+            byte[] connect = readBody(input);
+            // Variable header: protocol name, level, flags, then the keep alive.
+            int at = 2 + (((connect[0] & 0xff) << 8) | (connect[1] & 0xff)) + 2;
+            int keepAlive = ((connect[at] & 0xff) << 8) | (connect[at + 1] & 0xff);
+            s.setSoTimeout(keepAlive * 1500);
+            clients.add(c);
+            c.send(0x20, new byte[]{0, 0});
+
+            for (;;) {
+                int type = input.read();
+                if (type < 0) return;
+                byte[] body = readBody(input);
+                switch (type & 0xf0) {
+                    case 0x30:  // PUBLISH
+                        int length = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+                        String topic = new String(body, 2, length, StandardCharsets.UTF_8);
+                        byte[] payload = new byte[body.length - 2 - length];
+                        System.arraycopy(body, 2 + length, payload, 0, payload.length);
+                        forward(c, topic, payload);
+                        break;
+                    case 0x80:  // SUBSCRIBE
+                        length = ((body[2] & 0xff) << 8) | (body[3] & 0xff);
+                        c.filters.add(new String(body, 4, length, StandardCharsets.UTF_8));
+                        c.send(0x90, new byte[]{body[0], body[1], 0});
+                        break;
+                    case 0xC0:  // PINGREQ
+                        pings.incrementAndGet();
+                        c.send(0xD0, new byte[0]);
+                        break;
+                    case 0xE0:  // DISCONNECT
+                        return;
+                    default:
+                        break;
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            Logger.getLogger(StandInBroker.class.getName()).log(Level.INFO, "Dropping client that missed its keep alive.");
+        } catch (SocketException | EOFException ex) {
+            // Client went away.
+        } catch (IOException ex) {
+            Logger.getLogger(StandInBroker.class.getName()).log(Level.WARNING, null, ex);
+        } finally {
+            if (c != null) {
+                drop(c);
+            } else {
+                try {
+                    s.close();
+                } catch (IOException ex) {
+                    // Already closed.
+                }
+            }
+        }
+    }
+
+    /**
+     * Pass a message on to the listener and every subscriber but its sender.
+     */
+    private void forward(Client from, String topic, byte[] payload) {
+        Listener l = listener;
+        if (l != null && from != null) l.published(topic, new String(payload, StandardCharsets.UTF_8));
+        byte[] t = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[2 + t.length + payload.length];
+        body[0] = (byte) (t.length >> 8);
+        body[1] = (byte) t.length;
+        System.arraycopy(t, 0, body, 2, t.length);
+        System.arraycopy(payload, 0, body, 2 + t.length, payload.length);
+        for (Client c : clients) {
+            if (c == from || !c.matches(topic)) continue;
+            try {
+                c.send(0x30, body);
+            } catch (IOException ex) {
+                drop(c);
+            }
+        }
+    }
+
+    private void drop(Client c) {
+        clients.remove(c);
+        try {
+            c.socket.close();
+        } catch (IOException ex) {
+            // Already closed.
+        }
+    }
+
+    private static byte[] readBody(DataInputStream input) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int digit;
+        do {
+            digit = input.readUnsignedByte();
+            length |= (digit & 0x7f) << shift;
+            shift += 7;
+        } while ((digit & 0x80) != 0 && shift < 28);
+        byte[] body = new byte[length];
+        input.readFully(body);
+        return body;
+    }
+
+}
@@ -0,0 +1,231 @@
+package devantech.example.eth002;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A software stand in for an ETH002 that answers the TCP command protocol, for
+ * trying the client without hardware. It keeps relay states, a fixed supply
+ * voltage and MAC address, and asks for a password if one is set. It can also
+ * answer UDP discovery requests the way ETHScan expects.
+ */
+public class StandInDevice extends Thread {
+
+    private final ServerSocket server;
+    private final String password;
+    private final byte[] mac;
+
+    private volatile int outputs = 0;
+    private volatile int psu = 124;
+    private volatile boolean running = true;
+    private volatile DatagramSocket discovery = null;
+
+    /**
+     * Constructor
+     * @param p the port to listen on, 0 for any free port
+     * @param pass the password, empty for none
+     * @param m the 6 byte MAC address to report
+     * @throws IOException if the port can not be opened
+     */
+    public StandInDevice(int p, String pass, byte[] m) throws IOException {
+        super("stand-in-device");
+        server = new ServerSocket(p);
+        password = pass;
+        mac = m.clone();
+        setDaemon(true);
+    }
+
+    /**
+     * @return the port the device is listening on.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Set the supply voltage to report.
+     * @param tenths the voltage in tenths of a volt
+     */
+    public void setPSU(int tenths) {
+        psu = tenths;
+    }
+
+    /**
+     * Start answering discovery requests. Each datagram received is answered
+     * with a discovery reply naming this device as an ETH002 at 127.0.0.1.
+     * @param p the UDP port to listen on, 0 for any free port
+     * @return the UDP port
+     * @throws IOException if the port can not be opened
+     */
+    public int startDiscovery(int p) throws IOException {
+        DatagramSocket d = new DatagramSocket(p);
+        discovery = d;
+        Thread t = new Thread(() -> answerDiscovery(d), "stand-in-discovery");
+        t.setDaemon(true);
+        t.start();
+        return d.getLocalPort();
+    }
+
+    /**
+     * Stop listening and drop all connections.
+     */
+    public void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException ex) {
+            // Already closed.
+        }
+        DatagramSocket d = discovery;
+        if (d != null) d.close();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                Thread t = new Thread(() -> serve(s), "stand-in-client");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ex) {
+                if (running) Logger.getLogger(StandInDevice.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Answer commands from one client until it goes away.
+     */
+    private void serve(Socket s) {
+        boolean unlocked = password.isEmpty();
+        byte[] in = new byte[256 + 2];   // room for the arguments of a split command
+        ByteBuffer out = ByteBuffer.allocate(256 * ModuleCodec.MAX_RESPONSE);
+        try (Socket socket = s) {
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            for (;;) {
+                int n = input.read(in, 0, 256);
+                if (n < 0) return;
+                out.clear();
+                int index = 0;
+                while (index < n) {
+                    byte command = in[index++];
+                    if (command == ModuleCodec.SET_PASSWORD) {
+                        // The rest of the packet is the password.
+                        String given = new String(in, index, n - index, "ISO-8859-1");
+                        unlocked = given.equals(password);
+                        out.put((byte) (unlocked ? 1 : 2));
+                        index = n;
+                        continue;
+                    }
+                    if (!unlocked && command != ModuleCodec.GET_UNLOCK) {
+                        out.put((byte) 0);
+                        continue;
+                    }
+                    switch (command) {
+                        case ModuleCodec.GET_UNLOCK:
+                            out.put((byte) (unlocked ? 30 : 0));
+                            break;
+                        case ModuleCodec.GET_MODULE_INFO:
+                            out.put((byte) 18).put((byte) 1).put((byte) 4);
+                            break;
+                        case ModuleCodec.GET_SERIAL_NUMBER:
+                            out.put(mac);
+                            break;
+                        case ModuleCodec.GET_PSU:
+                            out.put((byte) psu);
+                            break;
+                        case ModuleCodec.GET_DIGI_OUTPUT:
+                            out.put((byte) outputs);
+                            break;
+                        case ModuleCodec.DIGITAL_OUTPUT_ACTIVE:
+                        case ModuleCodec.DIGITAL_OUTPUT_INACTIVE:
+                            if (index + 2 > n) n = readMore(input, in, n, index + 2 - n);
+                            int bit = 1 << ((in[index] & 0xff) - 1);
+                            index += 2;
+                            synchronized (this) {
+                                outputs = command == ModuleCodec.DIGITAL_OUTPUT_ACTIVE ? outputs | bit : outputs & ~bit;
+                            }
+                            out.put((byte) 0);
+                            break;
+                        case ModuleCodec.LOGOUT:
+                            unlocked = password.isEmpty();
+                            out.put((byte) 0);
+                            break;
+                        default:
+                            out.put((byte) 0);
+                            break;
+                    }
+                }
+                output.write(out.array(), 0, out.position());
+            }
+        } catch (SocketException ex) {
+            // Client went away.
+        } catch (IOException ex) {
+            Logger.getLogger(StandInDevice.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Reply to discovery requests until the socket is closed.
+     */
+    private void answerDiscovery(DatagramSocket d) {
+        byte[] reply = discoveryReply();
+        DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+        while (running) {
+            try {
+                p.setLength(1500);
+                d.receive(p);
+                d.send(new DatagramPacket(reply, reply.length, p.getSocketAddress()));
+            } catch (IOException ex) {
+                if (running) Logger.getLogger(StandInDevice.class.getName()).log(Level.WARNING, null, ex);
+                if (d.isClosed()) return;
+            }
+        }
+    }
+
+    /**
+     * Build a discovery reply: tagged fields each ending in CR LF, the host
+     * name padded with spaces to 15 characters as the modules send it.
+     */
+    private byte[] discoveryReply() {
+        ByteBuffer b = ByteBuffer.allocate(64);
+        b.put((byte) 0x02).put(mac).put((byte) '\r').put((byte) '\n');
+        b.put((byte) 0x04).put(String.format("%-15s", "STANDIN").getBytes(StandardCharsets.US_ASCII)).put((byte) '\r').put((byte) '\n');
+        b.put((byte) 0x05).put(new byte[]{127, 0, 0, 1}).put((byte) '\r').put((byte) '\n');
+        b.put((byte) 0x40).put((byte) 18).put((byte) '\r').put((byte) '\n');
+        b.put((byte) 0x01);
+        byte[] reply = new byte[b.position()];
+        b.flip();
+        b.get(reply);
+        return reply;
+    }
+
+    /**
+     * Read the arguments of a command that TCP split from the command itself.
+     * @return the new length of the data in the buffer
+     */
+    private static int readMore(InputStream input, byte[] in, int n, int missing) throws IOException {
+        int end = n;
+        while (missing > 0) {
+            int r = input.read(in, end, missing);
+            if (r < 0) throw new SocketException("Closed mid command.");
+            end += r;
+            missing -= r;
+        }
+        return end;
+    }
+
+}
@@ -0,0 +1,56 @@
+package devantech.example.eth002;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that TelemetryCache keeps one entry per module and serves pushed
+ * values for modules that are not polled over TCP.
+ */
+public class TelemetryCacheTest {
+
+    @Test
+    public void keyDoesNotChangeWhenTheMacBecomesKnown() {
+        TelemetryCache cache = new TelemetryCache();
+        Module m = new Module("10.0.0.1", 17494, "");
+        cache.track(m);
+        m.pushTelemetry(120, 1);
+        TelemetryCache.Snapshot before = cache.peek(m);
+        assertNotNull(before);
+
+        m.SERIAL = "00:04:A3:00:00:01";
+        assertSame(before, cache.peek(m));
+        m.pushTelemetry(121, 1);
+        assertEquals(121, cache.peek(m).psu);
+        assertEquals(before.key, cache.peek(m).key);
+    }
+
+    @Test
+    public void modulesForTheSameDeviceShareAnEntry() {
+        TelemetryCache cache = new TelemetryCache();
+        Module a = new Module("10.0.0.1", 17494, "");
+        Module b = new Module("10.0.0.1", 17494, "");
+        cache.track(a);
+        a.pushTelemetry(118, 3);
+        assertEquals(118, cache.peek(b).psu);
+    }
+
+    @Test
+    public void readServesPushedValuesWithoutATcpLink() throws IOException {
+        TelemetryCache cache = new TelemetryCache();
+        Module m = new Module("10.0.0.1", 17494, "");
+        assertThrows(IOException.class, () -> cache.read(m, 0, TimeUnit.MILLISECONDS));
+
+        m.pushTelemetry(124, 5);
+        TelemetryCache.Snapshot s = cache.read(m, 0, TimeUnit.MILLISECONDS);
+        assertEquals(124, s.psu);
+        assertEquals(5, s.outputs);
+    }
+
+}